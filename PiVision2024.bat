@@ -14,7 +14,7 @@ set APP_BASE_NAME=%~n0
 set APP_HOME=%DIRNAME%..
 
 @rem Add default JVM options here. You can also use JAVA_OPTS and PI_VISION2024_OPTS to pass JVM options to this script.
-set DEFAULT_JVM_OPTS=
+set DEFAULT_JVM_OPTS="--add-modules" "jdk.incubator.vector"
 
 @rem Find java.exe
 if defined JAVA_HOME goto findJavaFromJavaHome
@@ -0,0 +1,223 @@
+import edu.wpi.first.apriltag.AprilTagDetection;
+import edu.wpi.first.apriltag.AprilTagDetector;
+import edu.wpi.first.apriltag.AprilTagPoseEstimator;
+import edu.wpi.first.math.geometry.Quaternion;
+import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.networktables.DoubleArrayPublisher;
+import edu.wpi.first.networktables.DoublePublisher;
+import edu.wpi.first.networktables.IntegerArrayPublisher;
+import edu.wpi.first.networktables.IntegerPublisher;
+import edu.wpi.first.networktables.NetworkTable;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * AprilTag detection on the same frames the note pipeline sees, run as its own scheduler job.
+ *
+ * <p>The scheduler runs it on a separate worker with the newest frame whenever it is free, so
+ * note detection is never held up by tags; tag frames that arrive while it is busy are skipped.
+ *
+ * <p>Once tags have been seen, the next frame is only searched inside the box around their last
+ * corners (grown by a margin), which is much cheaper than the whole image. Every few frames, and
+ * whenever the hint finds nothing, the full frame is searched again to pick up new tags.
+ *
+ * <p>The detector's homography and corners are relative to the searched region; they are moved
+ * back into frame coordinates before pose estimation, so the estimator keeps the camera's own
+ * intrinsics and is only reconfigured when the resolution changes.
+ *
+ * <p>Results go to &lt;table&gt;/AprilTags, timestamped with the frame's capture time:
+ * IDs, Corners (8 per tag, pixel x/y), Poses (7 per tag: x, y, z meters and w, x, y, z
+ * quaternion, camera relative; empty without a calibration), CaptureTime and ProcessTime.
+ */
+public final class AprilTagStage implements VisionScheduler.Job {
+  private final Main.AprilTagConfig config;
+  private final CameraCalibration calibration;
+  private final AprilTagDetector detector = new AprilTagDetector();
+  private AprilTagPoseEstimator poseEstimator;
+
+  private final Mat gray = new Mat();
+  private final double[] intrinsics = new double[4];
+  private final double[] homography = new double[9];    // of the last detection, frame coordinates
+  private final double[] tagCorners = new double[8];
+  private Rect roiHint;
+  private int hintWidth;                                // frame size the hint was found in
+  private int hintHeight;
+  private int framesSinceFullSearch;
+  private long lastProcessNanos;
+
+  private final IntegerArrayPublisher pubIds;
+  private final DoubleArrayPublisher pubCorners;
+  private final DoubleArrayPublisher pubPoses;
+  private final IntegerPublisher pubCaptureTime;
+  private final DoublePublisher pubProcessTime;
+
+  /**
+   * Create the stage.
+   *
+   * @param config detector settings
+   * @param calibration the camera's calibration, null to skip pose estimation
+   * @param table table to publish under, PiVision for the first tag pipeline
+   */
+  public AprilTagStage(Main.AprilTagConfig config, CameraCalibration calibration, NetworkTable table) {
+    this.config = config;
+    this.calibration = calibration;
+
+    AprilTagDetector.Config detectorConfig = new AprilTagDetector.Config();
+    detectorConfig.numThreads = config.threads;
+    detectorConfig.quadDecimate = config.decimation;
+    detector.setConfig(detectorConfig);
+    detector.addFamily(config.family, config.maxHammingDistance);
+
+    NetworkTable tagTable = table.getSubTable("AprilTags");
+    pubIds = tagTable.getIntegerArrayTopic("IDs").publish();
+    pubCorners = tagTable.getDoubleArrayTopic("Corners").publish();
+    pubPoses = tagTable.getDoubleArrayTopic("Poses").publish();
+    pubCaptureTime = tagTable.getIntegerTopic("CaptureTime").publish();
+    pubProcessTime = tagTable.getDoubleTopic("ProcessTime").publish();
+  }
+
+  @Override
+  public void run(FrameSource.Frame frame) {
+    long start = System.nanoTime();
+    process(frame.mat, frame.captureTime);
+    lastProcessNanos = System.nanoTime() - start;
+    pubProcessTime.set(lastProcessNanos / 1.0e6);
+  }
+
+  /**
+   * How long the last detection took, nanoseconds.
+   */
+  public long lastProcessNanos() {
+    return lastProcessNanos;
+  }
+
+  private void process(Mat frame, long captureTime) {
+    AprilTagDetection[] detections = null;
+    Rect searched = null;
+
+    // a hint from another resolution, after the camera was reopened in a new mode, means nothing
+    if (roiHint != null && (frame.cols() != hintWidth || frame.rows() != hintHeight)) {
+      roiHint = null;
+    }
+    if (roiHint != null && framesSinceFullSearch < config.fullSearchInterval) {
+      searched = clip(roiHint, frame.cols(), frame.rows());
+      if (searched != null) {
+        detections = detect(frame, searched);
+        framesSinceFullSearch++;
+      }
+    }
+    if (detections == null || detections.length == 0) {
+      searched = new Rect(0, 0, frame.cols(), frame.rows());
+      detections = detect(frame, searched);
+      framesSinceFullSearch = 0;
+    }
+
+    if (calibration != null) {
+      calibration.ensureResolution(frame.cols(), frame.rows());
+      calibration.scaledIntrinsics(intrinsics);
+      if (poseEstimator == null || !samePinhole(poseEstimator.getConfig())) {
+        poseEstimator = new AprilTagPoseEstimator(new AprilTagPoseEstimator.Config(config.tagSize,
+            intrinsics[0], intrinsics[1], intrinsics[2], intrinsics[3]));
+      }
+    }
+
+    long[] ids = new long[detections.length];
+    double[] corners = new double[detections.length * 8];
+    double[] poses = new double[calibration != null ? detections.length * 7 : 0];
+    int minX = Integer.MAX_VALUE;
+    int minY = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE;
+    int maxY = Integer.MIN_VALUE;
+
+    for (int i = 0; i < detections.length; i++) {
+      AprilTagDetection detection = detections[i];
+      ids[i] = detection.getId();
+      for (int c = 0; c < 4; c++) {
+        double x = detection.getCornerX(c) + searched.x;
+        double y = detection.getCornerY(c) + searched.y;
+        corners[i * 8 + c * 2] = x;
+        corners[i * 8 + c * 2 + 1] = y;
+        tagCorners[c * 2] = x;
+        tagCorners[c * 2 + 1] = y;
+        minX = Math.min(minX, (int) x);
+        minY = Math.min(minY, (int) y);
+        maxX = Math.max(maxX, (int) Math.ceil(x));
+        maxY = Math.max(maxY, (int) Math.ceil(y));
+      }
+      if (poseEstimator != null) {
+        toFrame(detection.getHomography(), searched);
+        Transform3d pose = poseEstimator.estimate(homography, tagCorners);
+        Quaternion q = pose.getRotation().getQuaternion();
+        poses[i * 7] = pose.getX();
+        poses[i * 7 + 1] = pose.getY();
+        poses[i * 7 + 2] = pose.getZ();
+        poses[i * 7 + 3] = q.getW();
+        poses[i * 7 + 4] = q.getX();
+        poses[i * 7 + 5] = q.getY();
+        poses[i * 7 + 6] = q.getZ();
+      }
+    }
+
+    // hint for the next frame: where the tags were, grown by the margin to allow for motion
+    if (detections.length > 0) {
+      int margin = (int) (Math.max(maxX - minX, maxY - minY) * config.roiMargin);
+      roiHint = new Rect(minX - margin, minY - margin, maxX - minX + 2 * margin, maxY - minY + 2 * margin);
+      hintWidth = frame.cols();
+      hintHeight = frame.rows();
+    } else {
+      roiHint = null;
+    }
+
+    pubIds.set(ids, captureTime);
+    pubCorners.set(corners, captureTime);
+    pubPoses.set(poses, captureTime);
+    pubCaptureTime.set(captureTime, captureTime);
+  }
+
+  /**
+   * Whether an estimator config matches the current scaled intrinsics.
+   */
+  private boolean samePinhole(AprilTagPoseEstimator.Config poseConfig) {
+    return poseConfig.fx == intrinsics[0] && poseConfig.fy == intrinsics[1]
+        && poseConfig.cx == intrinsics[2] && poseConfig.cy == intrinsics[3];
+  }
+
+  /**
+   * Move a region relative homography (row major 3x3) into frame coordinates, by translating its
+   * output by the region's origin.
+   */
+  private void toFrame(double[] regionHomography, Rect region) {
+    for (int c = 0; c < 3; c++) {
+      double w = regionHomography[6 + c];
+      homography[c] = regionHomography[c] + region.x * w;
+      homography[3 + c] = regionHomography[3 + c] + region.y * w;
+      homography[6 + c] = w;
+    }
+  }
+
+  /**
+   * Convert just the searched region to grayscale and detect in it.
+   */
+  private AprilTagDetection[] detect(Mat frame, Rect region) {
+    Mat regionView = frame.submat(region);
+    Imgproc.cvtColor(regionView, gray, Imgproc.COLOR_BGR2GRAY);
+    regionView.release();
+    return detector.detect(gray);
+  }
+
+  /**
+   * The part of rect inside the frame, null if there is none.
+   */
+  private static Rect clip(Rect rect, int width, int height) {
+    int x = Math.max(0, rect.x);
+    int y = Math.max(0, rect.y);
+    int right = Math.min(width, rect.x + rect.width);
+    int bottom = Math.min(height, rect.y + rect.height);
+    if (right <= x || bottom <= y) {
+      return null;
+    }
+    return new Rect(x, y, right - x, bottom - y);
+  }
+}
@@ -0,0 +1,53 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * Erode and dilate on Mats through {@link BitMask}, for pipelines that keep their masks as
+ * CV_8UC1 Mats.
+ *
+ * <p>The result of the last step stays packed, so when the next step's input is the Mat that
+ * step wrote (erode then dilate, as the GRIP pipelines do), it is used directly instead of being
+ * packed again. That assumes nothing else writes to an output Mat before it is passed back in.
+ */
+public final class BitMaskMorphology {
+  private BitMask packed = new BitMask();
+  private BitMask result = new BitMask();
+  private Mat lastOutput;
+
+  /**
+   * Erode a binary mask with the 3x3 kernel, iterations times.
+   *
+   * @param borderValue value of pixels outside the image, see {@link MaskBackend#supportsBorder}
+   */
+  public void erode(Mat src, int iterations, Scalar borderValue, Mat dst) {
+    load(src);
+    packed.erode(iterations, MaskBackend.borderPixel(borderValue) == 0, result);
+    store(dst);
+  }
+
+  /**
+   * Dilate a binary mask with the 3x3 kernel, iterations times.
+   *
+   * @param borderValue value of pixels outside the image, see {@link MaskBackend#supportsBorder}
+   */
+  public void dilate(Mat src, int iterations, Scalar borderValue, Mat dst) {
+    load(src);
+    packed.dilate(iterations, MaskBackend.borderPixel(borderValue) == 255, result);
+    store(dst);
+  }
+
+  private void load(Mat src) {
+    // src is only trusted to still hold the packed result if it is the Mat we just wrote
+    if (src != lastOutput) {
+      packed.fromMat(src);
+    }
+  }
+
+  private void store(Mat dst) {
+    result.toMat(dst);
+    BitMask swap = packed;
+    packed = result;
+    result = swap;
+    lastOutput = dst;
+  }
+}
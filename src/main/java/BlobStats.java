@@ -0,0 +1,52 @@
+import java.util.Arrays;
+
+/**
+ * Blobs found in one frame, as parallel arrays: blob i is area[i], minX[i] and so on.
+ *
+ * <p>The arrays are reused from frame to frame and only grow, so only the first count entries
+ * are valid.
+ */
+@SuppressWarnings("MemberName")
+public final class BlobStats {
+  public int count;
+  public int[] area = new int[16];      // pixels
+  public int[] minX = new int[16];      // bounding box, inclusive
+  public int[] minY = new int[16];
+  public int[] maxX = new int[16];
+  public int[] maxY = new int[16];
+  public double[] centroidX = new double[16];
+  public double[] centroidY = new double[16];
+
+  public int width(int i) {
+    return maxX[i] - minX[i] + 1;
+  }
+
+  public int height(int i) {
+    return maxY[i] - minY[i] + 1;
+  }
+
+  void clear() {
+    count = 0;
+  }
+
+  void add(int blobArea, int left, int top, int right, int bottom, double cx, double cy) {
+    if (count == area.length) {
+      int size = count * 2;
+      area = Arrays.copyOf(area, size);
+      minX = Arrays.copyOf(minX, size);
+      minY = Arrays.copyOf(minY, size);
+      maxX = Arrays.copyOf(maxX, size);
+      maxY = Arrays.copyOf(maxY, size);
+      centroidX = Arrays.copyOf(centroidX, size);
+      centroidY = Arrays.copyOf(centroidY, size);
+    }
+    area[count] = blobArea;
+    minX[count] = left;
+    minY[count] = top;
+    maxX[count] = right;
+    maxY[count] = bottom;
+    centroidX[count] = cx;
+    centroidY[count] = cy;
+    count++;
+  }
+}
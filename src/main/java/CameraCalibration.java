@@ -0,0 +1,237 @@
+/**
+ * Camera intrinsics, lens distortion and mounting, turned into per-column and per-row lookup tables.
+ *
+ * <p>Undistorting whole frames is far too slow for the Pi, and we only ever need the angle to a
+ * handful of pixels. So when the resolution is first seen (and whenever it changes) every column
+ * and every row is undistorted once, the same way cv::undistortPoints does it, and the results are
+ * kept in arrays. Columns are undistorted along the principal row and rows along the principal
+ * column, which is exact on those lines and a close approximation elsewhere for the mild
+ * distortion of our USB cameras.
+ *
+ * <p>For a pinhole camera with no roll, the forward distance to the point where a pixel's ray hits
+ * the floor depends only on the row, and the sideways offset is the column's normalized x scaled by
+ * a per-row factor. Locating a pixel on the ground is therefore a few array reads. Without a mount
+ * height there is no floor to project onto, and every row is treated as above the horizon.
+ *
+ * <p>One calibration is shared by every pipeline on its camera, each on its own thread, so the
+ * tables for a resolution are built into an immutable set and published all at once. Every lookup
+ * reads that set once and uses only it, so a rebuild for a new resolution never mixes old and new
+ * tables.
+ */
+public final class CameraCalibration {
+  private static final int kUndistortIterations = 10;
+
+  // intrinsics at the calibration resolution
+  private final int calibrationWidth;
+  private final int calibrationHeight;
+  private final double fx;
+  private final double fy;
+  private final double cx;
+  private final double cy;
+  private final double k1;
+  private final double k2;
+  private final double p1;
+  private final double p2;
+  private final double k3;
+
+  // mounting
+  private final double mountHeight;    // lens height above the floor, meters
+  private final double mountPitch;     // radians, positive when tilted down
+
+  /**
+   * Lookup tables for one resolution.
+   */
+  private static final class Tables {
+    final int width;
+    final int height;
+    final double[] normalizedXByColumn;
+    final double[] yawByColumn;        // degrees, positive right
+    final double[] pitchByRow;         // degrees below the horizon
+    final double[] forwardByRow;       // meters along the floor, negative above the horizon
+    final double[] rayScaleByRow;      // meters per unit of normalized x
+
+    Tables(int width, int height) {
+      this.width = width;
+      this.height = height;
+      normalizedXByColumn = new double[width];
+      yawByColumn = new double[width];
+      pitchByRow = new double[height];
+      forwardByRow = new double[height];
+      rayScaleByRow = new double[height];
+    }
+
+    int column(int u) {
+      return Math.max(0, Math.min(width - 1, u));
+    }
+
+    int row(int v) {
+      return Math.max(0, Math.min(height - 1, v));
+    }
+  }
+
+  // tables for the current resolution, replaced whole; null until the first frame
+  private volatile Tables tables;
+
+  /**
+   * Create a calibration.
+   *
+   * @param calibrationWidth width of the images the camera was calibrated at
+   * @param calibrationHeight height of the images the camera was calibrated at
+   * @param fx focal length x, pixels
+   * @param fy focal length y, pixels
+   * @param cx principal point x, pixels
+   * @param cy principal point y, pixels
+   * @param distortion OpenCV distortion coefficients k1, k2, p1, p2[, k3]; may be empty
+   * @param mountHeight lens height above the floor, meters; 0 when unknown, for no floor distances
+   * @param mountPitchDegrees downward tilt of the camera, degrees
+   */
+  public CameraCalibration(int calibrationWidth, int calibrationHeight, double fx, double fy,
+      double cx, double cy, double[] distortion, double mountHeight, double mountPitchDegrees) {
+    this.calibrationWidth = calibrationWidth;
+    this.calibrationHeight = calibrationHeight;
+    this.fx = fx;
+    this.fy = fy;
+    this.cx = cx;
+    this.cy = cy;
+    this.k1 = distortion.length > 0 ? distortion[0] : 0;
+    this.k2 = distortion.length > 1 ? distortion[1] : 0;
+    this.p1 = distortion.length > 2 ? distortion[2] : 0;
+    this.p2 = distortion.length > 3 ? distortion[3] : 0;
+    this.k3 = distortion.length > 4 ? distortion[4] : 0;
+    this.mountHeight = mountHeight;
+    this.mountPitch = Math.toRadians(mountPitchDegrees);
+  }
+
+  /**
+   * Rebuild the tables if the frame size differs from the one they were built for.
+   */
+  public synchronized void ensureResolution(int frameWidth, int frameHeight) {
+    Tables current = tables;
+    if (current != null && frameWidth == current.width && frameHeight == current.height) {
+      return;
+    }
+    Tables t = new Tables(frameWidth, frameHeight);
+
+    // intrinsics scale with the image when the camera runs a different video mode
+    double scaleX = (double) frameWidth / calibrationWidth;
+    double scaleY = (double) frameHeight / calibrationHeight;
+    double sfx = fx * scaleX;
+    double sfy = fy * scaleY;
+    double scx = cx * scaleX;
+    double scy = cy * scaleY;
+
+    double[] point = new double[2];
+    for (int u = 0; u < frameWidth; u++) {
+      undistort((u - scx) / sfx, 0, point);
+      t.normalizedXByColumn[u] = point[0];
+      t.yawByColumn[u] = Math.toDegrees(Math.atan(point[0]));
+    }
+
+    double sinPitch = Math.sin(mountPitch);
+    double cosPitch = Math.cos(mountPitch);
+    for (int v = 0; v < frameHeight; v++) {
+      undistort(0, (v - scy) / sfy, point);
+      double y = point[1];
+      t.pitchByRow[v] = Math.toDegrees(mountPitch + Math.atan(y));
+
+      // ray (x, y, 1) in camera coordinates, rotated down by the mount pitch, hits the floor at t
+      double down = y * cosPitch + sinPitch;
+      if (down <= 0 || mountHeight <= 0) {
+        t.forwardByRow[v] = -1;
+        t.rayScaleByRow[v] = 0;
+      } else {
+        double distance = mountHeight / down;
+        t.forwardByRow[v] = distance * (cosPitch - y * sinPitch);
+        t.rayScaleByRow[v] = distance;
+      }
+    }
+    tables = t;
+    System.out.println("Calibration tables built for " + frameWidth + "x" + frameHeight);
+  }
+
+  /**
+   * Iteratively remove lens distortion from a normalized image point, as cv::undistortPoints does.
+   */
+  private void undistort(double x0, double y0, double[] out) {
+    double x = x0;
+    double y = y0;
+    for (int i = 0; i < kUndistortIterations; i++) {
+      double r2 = x * x + y * y;
+      double icdist = 1 / (1 + ((k3 * r2 + k2) * r2 + k1) * r2);
+      double deltaX = 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+      double deltaY = p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+      x = (x0 - deltaX) * icdist;
+      y = (y0 - deltaY) * icdist;
+    }
+    out[0] = x;
+    out[1] = y;
+  }
+
+  /**
+   * Horizontal angle to a pixel column, degrees, positive right.
+   */
+  public double yaw(int u) {
+    Tables t = tables;
+    return t.yawByColumn[t.column(u)];
+  }
+
+  /**
+   * Angle below the horizon of a pixel row, degrees.
+   */
+  public double pitch(int v) {
+    Tables t = tables;
+    return t.pitchByRow[t.row(v)];
+  }
+
+  /**
+   * Distance along the floor straight ahead of the camera to where the pixel's ray lands, meters.
+   * Negative when the pixel is at or above the horizon.
+   */
+  public double groundForward(int v) {
+    Tables t = tables;
+    return t.forwardByRow[t.row(v)];
+  }
+
+  /**
+   * Distance along the floor to the left of the camera where the pixel's ray lands, meters.
+   */
+  public double groundLeft(int u, int v) {
+    Tables t = tables;
+    return -t.normalizedXByColumn[t.column(u)] * t.rayScaleByRow[t.row(v)];
+  }
+
+  /**
+   * Fill the calibrated fields of a detection from its bounding box, measured at the bottom-centre
+   * of the box where the note touches the floor.
+   */
+  public void locate(Detection detection, int x, int y, int boxWidth, int boxHeight) {
+    Tables t = tables;
+    int u = t.column(x + boxWidth / 2);
+    int v = t.row(y + boxHeight - 1);
+    detection.yaw = t.yawByColumn[u];
+    detection.pitch = t.pitchByRow[v];
+    double forward = t.forwardByRow[v];
+    if (forward < 0) {
+      detection.distance = -1;
+      detection.groundForward = 0;
+      detection.groundLeft = 0;
+    } else {
+      detection.groundForward = forward;
+      detection.groundLeft = -t.normalizedXByColumn[u] * t.rayScaleByRow[v];
+      detection.distance = Math.hypot(forward, detection.groundLeft);
+    }
+  }
+
+  /**
+   * Fill the pinhole parameters, scaled to the current resolution, into {fx, fy, cx, cy}.
+   */
+  public void scaledIntrinsics(double[] out) {
+    Tables t = tables;
+    double scaleX = (double) t.width / calibrationWidth;
+    double scaleY = (double) t.height / calibrationHeight;
+    out[0] = fx * scaleX;
+    out[1] = fy * scaleY;
+    out[2] = cx * scaleX;
+    out[3] = cy * scaleY;
+  }
+}
@@ -0,0 +1,46 @@
+import edu.wpi.first.cameraserver.CameraServer;
+import edu.wpi.first.cscore.CvSink;
+import edu.wpi.first.cscore.VideoSource;
+import edu.wpi.first.util.WPIUtilJNI;
+
+import org.opencv.core.Mat;
+
+/**
+ * Frames from a cscore camera.
+ *
+ * <p>cscore keeps only the newest frame of each camera, and a grab waits for one newer than the
+ * last, so frames never queue between the camera and this source. Capture times are cscore's
+ * stamps from when it took the frame from the driver; time the frame spent in the driver's
+ * buffers before that is not included.
+ */
+public class CameraFrameSource extends FrameSource {
+  private final CvSink cvSink;
+
+  public CameraFrameSource(VideoSource camera) {
+    super(camera.getName());
+    cvSink = CameraServer.getVideo(camera);
+  }
+
+  @Override
+  protected long grabFrame(Mat dst) {
+    return cvSink.grabFrame(dst);
+  }
+
+  /**
+   * Grab from another camera from now on, for when the device has been reopened. The grabber
+   * thread and its buffers carry on as they were.
+   */
+  public void setCamera(VideoSource camera) {
+    cvSink.setSource(camera);
+  }
+
+  @Override
+  protected String getError() {
+    return cvSink.getError();
+  }
+
+  @Override
+  public long now() {
+    return WPIUtilJNI.now();
+  }
+}
@@ -0,0 +1,222 @@
+import java.util.Arrays;
+
+import edu.wpi.first.cameraserver.CameraServer;
+import edu.wpi.first.cscore.CvSource;
+import edu.wpi.first.cscore.MjpegServer;
+import edu.wpi.first.cscore.VideoMode;
+import edu.wpi.first.networktables.DoubleSubscriber;
+import edu.wpi.first.networktables.IntegerSubscriber;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * Measures how long {@link CameraSupervisor} takes to get a camera that drops out delivering
+ * frames again, with no camera.
+ *
+ * <pre>
+ *   java -cp java-multiCameraServer-all.jar CameraRecoveryHarness [outages] [outage seconds] [fps]
+ * </pre>
+ * A simulated camera feeds a cscore source, which a {@link CameraFrameSource} grabs from for a
+ * pipeline under a {@link VisionScheduler}, and is unplugged and plugged back in again and again.
+ * Like a USB camera that drops off the bus, once it has been unplugged it delivers nothing, even
+ * after it is back, until it is reopened, and reopening fails while it is unplugged. Reopening
+ * opens a new source and swaps it in with {@link Main#replaceCamera}, as a real reopen does, so the
+ * frame source, the camera's stream and a switched stream showing it are all pointed at the new
+ * source. The supervisor runs with the default frc.json settings.
+ *
+ * <p>For each outage it reports the RecoveryTime the supervisor published (last frame before the
+ * outage to first frame after), the time from plugging back in to the first frame, and whether the
+ * pipeline ran on frames after it and both streams show the new source. It exits non-zero if any
+ * outage is not recovered.
+ */
+public final class CameraRecoveryHarness {
+  private static final String kName = "simulated";
+  private static final int kWidth = 160;
+  private static final int kHeight = 120;
+  private static final long kRunMillis = 1000;
+  private static final long kOpenMillis = 80;           // about what a USB camera takes to open
+  private static final long kRecoverySlackMillis = 2000;
+
+  static {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  /**
+   * A camera device that can be unplugged, and that has to be reopened as a new source after it is
+   * plugged back in.
+   */
+  private static final class SimulatedCamera {
+    private final double fps;
+    private final Mat image = new Mat(kHeight, kWidth, CvType.CV_8UC3, new Scalar(40, 40, 40));
+    private volatile CvSource source;
+    private volatile boolean plugged = true;
+    private volatile boolean open;
+    private volatile long reopenAttempts;
+
+    SimulatedCamera(double fps) {
+      this.fps = fps;
+    }
+
+    /**
+     * Open the device as a new source.
+     */
+    CvSource open() {
+      source = new CvSource(kName, VideoMode.PixelFormat.kBGR, kWidth, kHeight, (int) fps);
+      open = true;
+      return source;
+    }
+
+    /**
+     * Put frames at the frame rate while plugged in and open, until interrupted.
+     */
+    void feed() {
+      long periodNanos = (long) (1.0e9 / fps);
+      long nextFrame = System.nanoTime();
+      while (!Thread.interrupted()) {
+        nextFrame += periodNanos;
+        long wait = nextFrame - System.nanoTime();
+        try {
+          if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          }
+        } catch (InterruptedException ex) {
+          return;
+        }
+        if (!plugged) {
+          open = false;
+        }
+        if (open) {
+          source.putFrame(image);
+        }
+      }
+    }
+
+    boolean reopen(CameraFrameSource frameSource) {
+      reopenAttempts++;
+      if (!plugged) {
+        return false;
+      }
+      try {
+        Thread.sleep(kOpenMillis);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      Main.replaceCamera(0, this::open, frameSource);
+      return true;
+    }
+  }
+
+  private CameraRecoveryHarness() {
+  }
+
+  /*** Harness ***/
+  public static void main(String... args) throws InterruptedException {
+    int outages = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    double outageSeconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+    double fps = args.length > 2 ? Double.parseDouble(args[2]) : 30;
+
+    NetworkTableInstance inst = NetworkTableInstance.create();
+    NetworkTable table = inst.getTable("PiVision");
+    NetworkTable stats = table.getSubTable("Cameras").getSubTable(kName);
+    DoubleSubscriber subRecoveryTime = stats.getDoubleTopic("RecoveryTime").subscribe(0);
+    IntegerSubscriber subRecoveries = stats.getIntegerTopic("Recoveries").subscribe(0);
+
+    // the camera, its stream and a switched stream showing it, set up as Main does
+    SimulatedCamera camera = new SimulatedCamera(fps);
+    CvSource initial = camera.open();
+    Main.cameras.add(initial);
+    CameraServer.addCamera(initial);
+    MjpegServer stream = CameraServer.addServer("serve_" + kName);
+    stream.setSource(initial);
+    Main.cameraServers.add(stream);
+    MjpegServer switched = CameraServer.addSwitchedCamera("switched");
+    switched.setSource(initial);
+    Main.switchedServers.add(switched);
+    CameraFrameSource frameSource = new CameraFrameSource(initial);
+    Thread feeder = new Thread(camera::feed, "SimulatedCamera");
+    feeder.setDaemon(true);
+
+    long[] lastRunSequence = new long[1];
+    VisionScheduler scheduler = new VisionScheduler(1, table);
+    scheduler.add("pipeline", frameSource, 0, 0, frame -> {
+      synchronized (lastRunSequence) {
+        lastRunSequence[0] = frame.sequence;
+      }
+    });
+    Main.SupervisorConfig config = new Main.SupervisorConfig();
+    CameraSupervisor supervisor = new CameraSupervisor(table, config.stallMillis, config.retryMillis);
+    supervisor.watch(frameSource, () -> camera.reopen(frameSource));
+    System.out.println(String.format("%d outages of %.1f s at %.0f fps, stall %d ms, retry %d ms", outages,
+        outageSeconds, fps, config.stallMillis, config.retryMillis));
+
+    feeder.start();
+    scheduler.start();
+    supervisor.start();
+    long[] recoveryNanos = new long[outages];
+    long[] replugNanos = new long[outages];
+    int recovered = 0;
+    boolean pipelineResumed = true;
+    boolean streamsFollowed = true;
+    for (int i = 0; i < outages; i++) {
+      Thread.sleep(kRunMillis);
+      long attemptsBefore = camera.reopenAttempts;
+      camera.plugged = false;
+      Thread.sleep((long) (outageSeconds * 1000));
+      long sequence = frameSource.latestSequence();
+      long replug = System.nanoTime();
+      camera.plugged = true;
+
+      long deadline = replug + (config.stallMillis + config.retryMillis + kRecoverySlackMillis) * 1000000L;
+      while (frameSource.latestSequence() == sequence && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+      if (frameSource.latestSequence() == sequence) {
+        System.out.println(String.format("outage %d: not recovered %d ms after plugging back in", i + 1,
+            (deadline - replug) / 1000000));
+        continue;
+      }
+      replugNanos[recovered] = System.nanoTime() - replug;
+
+      // the supervisor sees the new frame on its next poll, and the pipeline runs on it
+      Thread.sleep(kRunMillis / 2);
+      recoveryNanos[recovered] = (long) (subRecoveryTime.get() * 1.0e6);
+      boolean ran;
+      synchronized (lastRunSequence) {
+        ran = lastRunSequence[0] > sequence;
+      }
+      pipelineResumed &= ran;
+      boolean followed;
+      synchronized (Main.cameraLock) {
+        int current = Main.cameras.get(0).getHandle();
+        followed = stream.getSource().getHandle() == current && switched.getSource().getHandle() == current;
+      }
+      streamsFollowed &= followed;
+      System.out.println(String.format("outage %d: recovery %.0f ms, plug in to frame %.0f ms, %d reopen attempts,"
+          + " pipeline %s, streams %s", i + 1, recoveryNanos[recovered] / 1.0e6, replugNanos[recovered] / 1.0e6,
+          camera.reopenAttempts - attemptsBefore, ran ? "resumed" : "did not resume",
+          followed ? "on the new source" : "left on the old source"));
+      recovered++;
+    }
+    supervisor.stop();
+    scheduler.stop();
+    feeder.interrupt();
+    feeder.join();
+
+    System.out.println(String.format("%d of %d outages recovered, supervisor counted %d", recovered, outages,
+        subRecoveries.get()));
+    if (recovered > 0) {
+      System.out.println("recovery time: " + FrameReplay.summarize(Arrays.copyOf(recoveryNanos, recovered)));
+      System.out.println("plug in to frame: " + FrameReplay.summarize(Arrays.copyOf(replugNanos, recovered)));
+    }
+    inst.close();
+    if (recovered < outages || !pipelineResumed || !streamsFollowed) {
+      System.exit(1);
+    }
+  }
+}
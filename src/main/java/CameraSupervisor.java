@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wpi.first.networktables.BooleanPublisher;
+import edu.wpi.first.networktables.DoublePublisher;
+import edu.wpi.first.networktables.IntegerPublisher;
+import edu.wpi.first.networktables.NetworkTable;
+
+/**
+ * Watches frame sources and reopens their devices when they stop delivering frames, without
+ * restarting anything else.
+ *
+ * <p>A source is stalled when it has delivered no new frame for the stall time, or straight away
+ * when cscore reports its camera disconnected. Its device is then reopened every retry interval
+ * until frames come again. The source object, its grabber thread and frame buffers, and every
+ * pipeline reading from it carry on as they were; they just see a gap in the frames.
+ *
+ * <p>For each source, PiVision/Cameras/&lt;name&gt;/ has Connected, Recoveries and RecoveryTime,
+ * the milliseconds from the last frame before the latest outage to the first one after it.
+ */
+public final class CameraSupervisor {
+  private static final long kPollMillis = 20;
+
+  /**
+   * Reopens the device behind a source.
+   */
+  public interface Reopener {
+    /**
+     * Close the device and open it again with its configuration.
+     *
+     * @return whether it opened; frames may still take a moment to arrive
+     */
+    boolean reopen();
+  }
+
+  private static final class Watched {
+    final FrameSource source;
+    final Reopener reopener;
+
+    long lastSequence;
+    long lastFrameNanos;
+    volatile boolean disconnected;
+    boolean recovering;
+    long nextAttemptNanos;
+    int attempts;
+    long recoveries;
+
+    BooleanPublisher pubConnected;
+    IntegerPublisher pubRecoveries;
+    DoublePublisher pubRecoveryTime;
+
+    Watched(FrameSource source, Reopener reopener) {
+      this.source = source;
+      this.reopener = reopener;
+    }
+  }
+
+  private final NetworkTable table;
+  private final long stallNanos;
+  private final long retryNanos;
+  private final List<Watched> watched = new ArrayList<>();
+  private Thread thread;
+
+  /**
+   * Create a supervisor.
+   *
+   * @param table table to publish under, usually PiVision
+   * @param stallMillis time without frames before a source counts as stalled
+   * @param retryMillis time between attempts to reopen a stalled source
+   */
+  public CameraSupervisor(NetworkTable table, long stallMillis, long retryMillis) {
+    this.table = table;
+    this.stallNanos = stallMillis * 1000000L;
+    this.retryNanos = retryMillis * 1000000L;
+  }
+
+  /**
+   * Watch a source. Must be called before {@link #start}.
+   */
+  public void watch(FrameSource source, Reopener reopener) {
+    Watched w = new Watched(source, reopener);
+    NetworkTable stats = table.getSubTable("Cameras").getSubTable(source.getName());
+    w.pubConnected = stats.getBooleanTopic("Connected").publish();
+    w.pubRecoveries = stats.getIntegerTopic("Recoveries").publish();
+    w.pubRecoveryTime = stats.getDoubleTopic("RecoveryTime").publish();
+    w.pubConnected.set(true);
+    watched.add(w);
+  }
+
+  /**
+   * Treat a source as stalled now rather than waiting out the stall time, for cscore disconnect
+   * events. Safe to call from any thread.
+   */
+  public void disconnected(String sourceName) {
+    for (Watched w : watched) {
+      if (w.source.getName().equals(sourceName)) {
+        w.disconnected = true;
+      }
+    }
+  }
+
+  /**
+   * Start watching.
+   */
+  public void start() {
+    long now = System.nanoTime();
+    for (Watched w : watched) {
+      w.lastSequence = w.source.latestSequence();
+      w.lastFrameNanos = now;
+    }
+    thread = new Thread(this::run, "CameraSupervisor");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop watching.
+   */
+  public void stop() throws InterruptedException {
+    if (thread != null) {
+      thread.interrupt();
+      thread.join();
+      thread = null;
+    }
+  }
+
+  private void run() {
+    while (!Thread.interrupted()) {
+      long now = System.nanoTime();
+      for (Watched w : watched) {
+        check(w, now);
+      }
+      try {
+        Thread.sleep(kPollMillis);
+      } catch (InterruptedException ex) {
+        return;
+      }
+    }
+  }
+
+  private void check(Watched w, long now) {
+    long sequence = w.source.latestSequence();
+    if (sequence != w.lastSequence) {
+      if (w.recovering) {
+        long gap = now - w.lastFrameNanos;
+        w.recovering = false;
+        w.recoveries++;
+        w.pubConnected.set(true);
+        w.pubRecoveries.set(w.recoveries);
+        w.pubRecoveryTime.set(gap / 1.0e6);
+        System.out.println(String.format("Camera '%s' recovered after %.0f ms, %d reopen attempts",
+            w.source.getName(), gap / 1.0e6, w.attempts));
+      }
+      w.lastSequence = sequence;
+      w.lastFrameNanos = now;
+      w.disconnected = false;
+      return;
+    }
+
+    if (!w.recovering && (w.disconnected || now - w.lastFrameNanos > stallNanos)) {
+      System.out.println("Camera '" + w.source.getName() + "' "
+          + (w.disconnected ? "disconnected" : "stalled") + ", reopening");
+      w.recovering = true;
+      w.attempts = 0;
+      w.nextAttemptNanos = now;
+      w.pubConnected.set(false);
+    }
+    if (w.recovering && now - w.nextAttemptNanos >= 0) {
+      w.attempts++;
+      w.disconnected = false;
+      boolean opened;
+      try {
+        opened = w.reopener.reopen();
+      } catch (RuntimeException ex) {
+        System.err.println("Reopening camera '" + w.source.getName() + "' failed: " + ex);
+        opened = false;
+      }
+      // even once it opens, give it the stall time to deliver before trying again
+      w.nextAttemptNanos = System.nanoTime() + (opened ? Math.max(retryNanos, stallNanos) : retryNanos);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Per-pixel HLS and HSV range tests that give the same answer as OpenCV's cvtColor followed by
+ * inRange on 8-bit BGR, for the Java mask stages.
+ *
+ * <p>HLS repeats OpenCV's float arithmetic and round-half-even; HSV uses OpenCV's fixed point
+ * tables. Ranges are {min, max} pairs already rounded with {@link #bounds}.
+ */
+public final class ColorThreshold {
+  // OpenCV's fixed point tables for 8-bit BGR to HSV with a 0-180 hue
+  static final int kHsvShift = 12;
+  static final int[] kSaturationDiv = new int[256];
+  static final int[] kHueDiv = new int[256];
+
+  static {
+    for (int i = 1; i < 256; i++) {
+      kSaturationDiv[i] = (int) Math.rint((255 << kHsvShift) / (1.0 * i));
+      kHueDiv[i] = (int) Math.rint((180 << kHsvShift) / (6.0 * i));
+    }
+  }
+
+  private ColorThreshold() {
+  }
+
+  /**
+   * inRange bounds as OpenCV applies them to 8-bit images: rounded to integers.
+   */
+  public static int[] bounds(double[] range) {
+    return new int[] {(int) Math.rint(range[0]), (int) Math.rint(range[1])};
+  }
+
+  /**
+   * Whether an 8-bit BGR pixel is inside the hue, luminance and saturation ranges.
+   */
+  public static boolean hls(int blue, int green, int red, int[] h, int[] l, int[] s) {
+    float b = blue * (1.f / 255.f);
+    float g = green * (1.f / 255.f);
+    float r = red * (1.f / 255.f);
+    float vmax = Math.max(Math.max(r, g), b);
+    float vmin = Math.min(Math.min(r, g), b);
+    float lum = (vmax + vmin) * 0.5f;
+    // luminance is the cheapest and rejects most pixels
+    if (!inRange((int) Math.rint(lum * 255.f), l)) {
+      return false;
+    }
+    float diff = vmax - vmin;
+    float hue = 0;
+    float sat = 0;
+    if (diff > Math.ulp(1.0f)) {
+      sat = lum < 0.5f ? diff / (vmax + vmin) : diff / (2 - vmax - vmin);
+      float scale = 60.f / diff;
+      if (vmax == r) {
+        hue = (g - b) * scale;
+      } else if (vmax == g) {
+        hue = (b - r) * scale + 120.f;
+      } else {
+        hue = (r - g) * scale + 240.f;
+      }
+      if (hue < 0) {
+        hue += 360.f;
+      }
+      hue *= 0.5f;
+    }
+    return inRange((int) Math.rint(sat * 255.f), s) && inRange((int) Math.rint(hue), h);
+  }
+
+  /**
+   * Whether an 8-bit BGR pixel is inside the hue, saturation and value ranges.
+   */
+  public static boolean hsv(int b, int g, int r, int[] h, int[] s, int[] v) {
+    int val = Math.max(Math.max(r, g), b);
+    if (!inRange(val, v)) {
+      return false;
+    }
+    int round = 1 << (kHsvShift - 1);
+    int diff = val - Math.min(Math.min(r, g), b);
+    int sat = (diff * kSaturationDiv[val] + round) >> kHsvShift;
+    int hue;
+    if (val == r) {
+      hue = g - b;
+    } else if (val == g) {
+      hue = b - r + 2 * diff;
+    } else {
+      hue = r - g + 4 * diff;
+    }
+    hue = (hue * kHueDiv[diff] + round) >> kHsvShift;
+    if (hue < 0) {
+      hue += 180;
+    }
+    return inRange(sat, s) && inRange(hue, h);
+  }
+
+  static boolean inRange(int x, int[] range) {
+    return x >= range[0] && x <= range[1];
+  }
+}
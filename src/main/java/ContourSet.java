@@ -0,0 +1,257 @@
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfPoint;
+
+/**
+ * Contours as flat arrays: every point of every contour in one int[], with each contour's
+ * offset and length, and its bounding box, area and centroid worked out once when it is added.
+ *
+ * <p>Contour i is points[2 * offset[i]] onwards, x then y, for length[i] points. The arrays are
+ * reused from frame to frame and only grow, so only the first count entries are valid. Nothing
+ * here is native: contours are copied out of OpenCV's MatOfPoints with one bulk read each, and
+ * filtering, selection and publishing work on the arrays. {@link #toMatOfPoint} goes back to a
+ * MatOfPoint for drawing.
+ *
+ * <p>Area, perimeter and solidity are computed the way Imgproc.contourArea, arcLength and
+ * convexHull do, so {@link #filter} keeps exactly the contours GRIP's filterContours would.
+ */
+@SuppressWarnings("MemberName")
+public final class ContourSet {
+  public int count;
+  public int[] points = new int[1024];
+  public int[] offset = new int[16];    // first point of each contour
+  public int[] length = new int[16];    // points in each contour
+  public int[] source = new int[16];    // index in the list or set it was read from
+  public int[] minX = new int[16];      // bounding box, as Imgproc.boundingRect
+  public int[] minY = new int[16];
+  public int[] width = new int[16];
+  public int[] height = new int[16];
+  public double[] area = new double[16];       // as Imgproc.contourArea
+  public double[] centroidX = new double[16];  // of the polygon, box center if it has no area
+  public double[] centroidY = new double[16];
+  private int pointCount;
+
+  // scratch for reading contours and for convex hulls
+  private int[] read = new int[256];
+  private int[] order = new int[64];
+  private int[] hull = new int[128];
+
+  public void clear() {
+    count = 0;
+    pointCount = 0;
+  }
+
+  /**
+   * Replace the contents with OpenCV's contours, one bulk read each.
+   */
+  public void read(List<MatOfPoint> contours) {
+    clear();
+    for (int i = 0; i < contours.size(); i++) {
+      MatOfPoint contour = contours.get(i);
+      int n = (int) contour.total();
+      if (read.length < 2 * n) {
+        read = new int[4 * n];
+      }
+      if (n > 0) {
+        contour.get(0, 0, read);
+      }
+      add(read, 0, n, i);
+    }
+  }
+
+  /**
+   * Add a contour of n points, x then y, starting at from.
+   */
+  public void add(int[] xy, int from, int n, int sourceIndex) {
+    if (count == offset.length) {
+      int size = count * 2;
+      offset = Arrays.copyOf(offset, size);
+      length = Arrays.copyOf(length, size);
+      source = Arrays.copyOf(source, size);
+      minX = Arrays.copyOf(minX, size);
+      minY = Arrays.copyOf(minY, size);
+      width = Arrays.copyOf(width, size);
+      height = Arrays.copyOf(height, size);
+      area = Arrays.copyOf(area, size);
+      centroidX = Arrays.copyOf(centroidX, size);
+      centroidY = Arrays.copyOf(centroidY, size);
+    }
+    if (points.length < 2 * (pointCount + n)) {
+      points = Arrays.copyOf(points, Math.max(points.length * 2, 2 * (pointCount + n)));
+    }
+    System.arraycopy(xy, from, points, 2 * pointCount, 2 * n);
+
+    int left = Integer.MAX_VALUE;
+    int top = Integer.MAX_VALUE;
+    int right = Integer.MIN_VALUE;
+    int bottom = Integer.MIN_VALUE;
+    // shoelace from the last point round, as contourArea does; exact in doubles for pixel points
+    double twiceArea = 0;
+    double sumX = 0;
+    double sumY = 0;
+    int base = 2 * pointCount;
+    int previousX = n > 0 ? points[base + 2 * (n - 1)] : 0;
+    int previousY = n > 0 ? points[base + 2 * (n - 1) + 1] : 0;
+    for (int p = 0; p < n; p++) {
+      int x = points[base + 2 * p];
+      int y = points[base + 2 * p + 1];
+      left = Math.min(left, x);
+      top = Math.min(top, y);
+      right = Math.max(right, x);
+      bottom = Math.max(bottom, y);
+      double cross = (double) previousX * y - (double) previousY * x;
+      twiceArea += cross;
+      sumX += (previousX + x) * cross;
+      sumY += (previousY + y) * cross;
+      previousX = x;
+      previousY = y;
+    }
+
+    offset[count] = pointCount;
+    length[count] = n;
+    source[count] = sourceIndex;
+    minX[count] = n > 0 ? left : 0;
+    minY[count] = n > 0 ? top : 0;
+    width[count] = n > 0 ? right - left + 1 : 0;
+    height[count] = n > 0 ? bottom - top + 1 : 0;
+    area[count] = Math.abs(twiceArea * 0.5);
+    if (twiceArea != 0) {
+      centroidX[count] = sumX / (3 * twiceArea);
+      centroidY[count] = sumY / (3 * twiceArea);
+    } else {
+      centroidX[count] = minX[count] + width[count] / 2.0;
+      centroidY[count] = minY[count] + height[count] / 2.0;
+    }
+    count++;
+    pointCount += n;
+  }
+
+  /**
+   * Closed perimeter of contour i, as Imgproc.arcLength on the float points.
+   */
+  public double perimeter(int i) {
+    int base = 2 * offset[i];
+    int n = length[i];
+    if (n == 0) {
+      return 0;
+    }
+    double perimeter = 0;
+    float previousX = points[base + 2 * (n - 1)];
+    float previousY = points[base + 2 * (n - 1) + 1];
+    for (int p = 0; p < n; p++) {
+      float dx = points[base + 2 * p] - previousX;
+      float dy = points[base + 2 * p + 1] - previousY;
+      perimeter += (float) Math.sqrt(dx * dx + dy * dy);
+      previousX = points[base + 2 * p];
+      previousY = points[base + 2 * p + 1];
+    }
+    return perimeter;
+  }
+
+  /**
+   * Area of contour i's convex hull.
+   */
+  public double hullArea(int i) {
+    int base = 2 * offset[i];
+    int n = length[i];
+    if (n < 3) {
+      return 0;
+    }
+    if (order.length < n) {
+      order = new int[2 * n];
+      hull = new int[4 * n];
+    }
+    // Andrew's monotone chain over the points sorted by x then y
+    for (int p = 0; p < n; p++) {
+      order[p] = base + 2 * p;
+    }
+    sortPoints(n);
+    int size = 0;
+    for (int pass = 0; pass < 2; pass++) {
+      int start = size;
+      for (int k = 0; k < n; k++) {
+        int p = order[pass == 0 ? k : n - 1 - k];
+        while (size >= start + 2 && cross(hull[size - 2], hull[size - 1], p) <= 0) {
+          size--;
+        }
+        hull[size++] = p;
+      }
+      // the last point of each half is the first of the other
+      size--;
+    }
+
+    double twiceArea = 0;
+    int previous = hull[size - 1];
+    for (int k = 0; k < size; k++) {
+      int p = hull[k];
+      twiceArea += (double) points[previous] * points[p + 1] - (double) points[previous + 1] * points[p];
+      previous = p;
+    }
+    return Math.abs(twiceArea * 0.5);
+  }
+
+  private long cross(int o, int a, int b) {
+    return (long) (points[a] - points[o]) * (points[b + 1] - points[o + 1])
+        - (long) (points[a + 1] - points[o + 1]) * (points[b] - points[o]);
+  }
+
+  /**
+   * Insertion sort of order[0, n) by x then y; contours from findContours come nearly sorted
+   * along their edges and are short after CHAIN_APPROX_SIMPLE.
+   */
+  private void sortPoints(int n) {
+    for (int k = 1; k < n; k++) {
+      int p = order[k];
+      int j = k - 1;
+      while (j >= 0 && (points[order[j]] > points[p]
+          || (points[order[j]] == points[p] && points[order[j] + 1] > points[p + 1]))) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = p;
+    }
+  }
+
+  /**
+   * Replace the contents with the contours of input that pass GRIP's filterContours tests.
+   * source[] of each kept contour is its index in input's source list.
+   */
+  public void filter(ContourSet input, double minArea, double minPerimeter, double minWidth,
+      double maxWidth, double minHeight, double maxHeight, double[] solidity, double maxVertexCount,
+      double minVertexCount, double minRatio, double maxRatio) {
+    clear();
+    for (int i = 0; i < input.count; i++) {
+      int w = input.width[i];
+      int h = input.height[i];
+      if (w < minWidth || w > maxWidth) continue;
+      if (h < minHeight || h > maxHeight) continue;
+      if (input.area[i] < minArea) continue;
+      if (minPerimeter > 0 && input.perimeter(i) < minPerimeter) continue;
+      final double solid = 100 * input.area[i] / input.hullArea(i);
+      if (solid < solidity[0] || solid > solidity[1]) continue;
+      if (input.length[i] < minVertexCount || input.length[i] > maxVertexCount) continue;
+      final double ratio = w / (double) h;
+      if (ratio < minRatio || ratio > maxRatio) continue;
+      add(input.points, 2 * input.offset[i], input.length[i], input.source[i]);
+    }
+  }
+
+  /**
+   * Contour i as a MatOfPoint, for drawing. Reuses dst, and allocates nothing once the scratch
+   * has grown to the longest contour.
+   */
+  public MatOfPoint toMatOfPoint(int i, MatOfPoint dst) {
+    dst.create(length[i], 1, CvType.CV_32SC2);
+    if (length[i] > 0) {
+      if (read.length < 2 * length[i]) {
+        read = new int[4 * length[i]];
+      }
+      System.arraycopy(points, 2 * offset[i], read, 0, 2 * length[i]);
+      // like get, put stops at the end of the Mat, so the scratch can be longer than the contour
+      dst.put(0, 0, read);
+    }
+    return dst;
+  }
+}
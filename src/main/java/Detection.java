@@ -0,0 +1,48 @@
+/**
+ * Result of running the note pipeline on one frame, plus how long each stage took.
+ *
+ * <p>One instance is reused by the vision loop every frame, so consumers that keep results
+ * around (the match recorder, for example) copy the fields out instead of holding a reference.
+ */
+@SuppressWarnings("MemberName")
+public class Detection {
+  public long frameNumber;
+  public long captureTime;      // cscore frame time, microseconds
+  public boolean detected;
+  public int contourCount;
+  public int centerX;
+  public int centerY;
+  public int width;
+  public int height;
+  public double angle;
+
+  // from the camera calibration, zero when the camera has none
+  public double yaw;            // degrees, positive right
+  public double pitch;          // degrees below the horizon
+  public double distance;       // meters along the floor, -1 if the note is above the horizon
+  public double groundForward;  // meters ahead of the camera
+  public double groundLeft;     // meters left of the camera
+
+  // stage durations, nanoseconds
+  public long grabNanos;
+  public long processNanos;
+  public long selectNanos;
+  public long publishNanos;
+
+  /**
+   * Clear the target fields for a frame with no note.
+   */
+  public void clearTarget() {
+    detected = false;
+    centerX = 0;
+    centerY = 0;
+    width = 0;
+    height = 0;
+    angle = 0;
+    yaw = 0;
+    pitch = 0;
+    distance = 0;
+    groundForward = 0;
+    groundLeft = 0;
+  }
+}
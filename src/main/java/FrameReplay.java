@@ -0,0 +1,576 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Replays recorded frames from a directory of images so pipelines can be run without a camera.
+ *
+ * <p>Run as a program it has six modes: soak and timing exercise the note pipeline, and bitmask,
+ * scanline, separable and contours check an alternative backend against OpenCV or GRIP.
+ * <pre>
+ *   java -cp java-multiCameraServer-all.jar FrameReplay soak &lt;frame dir&gt; [frames]
+ *   java -cp java-multiCameraServer-all.jar FrameReplay timing &lt;frame dir&gt; [frames] [apriltag]
+ *   java -cp java-multiCameraServer-all.jar FrameReplay bitmask &lt;frame dir&gt;
+ *   java -cp java-multiCameraServer-all.jar FrameReplay scanline &lt;frame dir&gt;
+ *   java -cp java-multiCameraServer-all.jar FrameReplay separable &lt;frame dir&gt;
+ *   java -cp java-multiCameraServer-all.jar FrameReplay contours &lt;frame dir&gt;
+ * </pre>
+ * soak feeds the frames through {@link NoteGripPipeline} in a loop and prints the pipeline's live
+ * native Mat count and bytes next to the process RSS. Both should stay flat once the pipeline has
+ * warmed up; the exit code is non-zero if RSS keeps growing.
+ *
+ * <p>timing runs the note pipeline under a {@link VisionScheduler} fed by a
+ * {@link ReplayFrameSource} at camera rate and reports its per-frame process time. With apriltag
+ * it runs the frames a second time with an {@link AprilTagStage} scheduled on the same source, and
+ * exits non-zero if the note pipeline's p95 with tags is more than 10% (and at least 0.5 ms) above
+ * its p95 without.
+ *
+ * <p>bitmask checks that {@link BitMaskMorphology} gives exactly the same masks as OpenCV's erode
+ * and dilate on every recorded frame's threshold output, for 1 to 3 iterations with GRIP's
+ * border, and exits non-zero on any difference.
+ *
+ * <p>scanline runs {@link ScanlineBlobExtractor} next to the GRIP pipeline on every frame and
+ * reports how often they agree on whether there is a note, how well the largest boxes overlap,
+ * how far apart their centers are, and the time each takes.
+ *
+ * <p>separable checks {@link SeparableMorphology} against chains of single-iteration OpenCV calls
+ * for erode, dilate, open and close, with the 3x3 and a 5x3 rectangle, 1 to 3 iterations, GRIP's
+ * border and OpenCV's default, on every frame's threshold mask and its grayscale image. It prints
+ * the full frame passes and time of the chains next to the separable engine's, and exits non-zero
+ * on any difference.
+ *
+ * <p>contours checks that {@link ContourSet}'s bounding boxes, areas, perimeters and hull areas
+ * are the same as Imgproc's for every contour the note pipeline finds, and exits non-zero on any
+ * difference.
+ */
+public final class FrameReplay {
+  private static final int kReportInterval = 500;
+  private static final double kAllowedRssGrowth = 0.10;
+  private static final double kReplayFps = 30;
+  private static final double kAllowedTagSlowdown = 0.10;
+  private static final double kTagSlowdownFloorMillis = 0.5;
+
+  private final List<Mat> frames = new ArrayList<>();
+  private int index;
+
+  static {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  /**
+   * Load every .jpg and .png in a directory, in file name order.
+   */
+  public FrameReplay(String directory) throws IOException {
+    List<Path> files;
+    try (Stream<Path> listing = Files.list(Paths.get(directory))) {
+      files = listing
+          .filter(path -> {
+            String name = path.getFileName().toString().toLowerCase();
+            return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png");
+          })
+          .sorted()
+          .toList();
+    }
+    for (Path file : files) {
+      Mat frame = Imgcodecs.imread(file.toString());
+      if (frame.empty()) {
+        System.err.println("Could not read replay frame [" + file + "], skipping");
+        continue;
+      }
+      frames.add(frame);
+    }
+    if (frames.isEmpty()) {
+      throw new IOException("No replay frames found in [" + directory + "]");
+    }
+  }
+
+  public int size() {
+    return frames.size();
+  }
+
+  /**
+   * Copy the next frame into dst, wrapping around at the end of the recording.
+   *
+   * @return the index of the frame that was copied
+   */
+  public int next(Mat dst) {
+    int current = index;
+    frames.get(current).copyTo(dst);
+    index = (index + 1) % frames.size();
+    return current;
+  }
+
+  /**
+   * Release the loaded frames.
+   */
+  public void close() {
+    NativeMats.releaseAll(frames);
+  }
+
+  /**
+   * Resident set size of this process in kB, or -1 when /proc is not available.
+   */
+  static long residentKb() {
+    try {
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+      }
+    } catch (IOException | NumberFormatException ex) {
+      // fall through
+    }
+    return -1;
+  }
+
+  /*** Replay tools ***/
+  public static void main(String... args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: FrameReplay soak <frame dir> [frames]");
+      System.err.println("       FrameReplay timing <frame dir> [frames] [apriltag]");
+      System.err.println("       FrameReplay bitmask <frame dir>");
+      System.err.println("       FrameReplay scanline <frame dir>");
+      System.err.println("       FrameReplay separable <frame dir>");
+      System.err.println("       FrameReplay contours <frame dir>");
+      System.exit(2);
+    }
+    FrameReplay replay = new FrameReplay(args[1]);
+    System.out.println("Replaying " + replay.size() + " frames from " + args[1]);
+
+    if ("soak".equals(args[0])) {
+      soak(replay, args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+    } else if ("timing".equals(args[0])) {
+      int totalFrames = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+      long notesOnly = timing(replay, totalFrames, false);
+      if (args.length > 3 && "apriltag".equals(args[3])) {
+        long withTags = timing(replay, totalFrames, true);
+        long allowed = Math.max((long) (notesOnly * kAllowedTagSlowdown), (long) (kTagSlowdownFloorMillis * 1.0e6));
+        String comparison = String.format("note p95 %.2f ms with tags, %.2f ms without, allowed %.2f ms more",
+            withTags / 1.0e6, notesOnly / 1.0e6, allowed / 1.0e6);
+        if (withTags - notesOnly > allowed) {
+          System.out.println("FAIL: " + comparison);
+          System.exit(1);
+        }
+        System.out.println("OK: " + comparison);
+      }
+    } else if ("bitmask".equals(args[0])) {
+      bitmask(replay);
+    } else if ("scanline".equals(args[0])) {
+      scanline(replay);
+    } else if ("separable".equals(args[0])) {
+      separable(replay);
+    } else if ("contours".equals(args[0])) {
+      contours(replay);
+    } else {
+      System.err.println("Unknown mode [" + args[0] + "]");
+      System.exit(2);
+    }
+    replay.close();
+  }
+
+  /**
+   * Time the note pipeline under the scheduler, optionally alongside an AprilTag stage.
+   *
+   * @return the note pipeline's p95 process time, nanoseconds
+   */
+  private static long timing(FrameReplay replay, int totalFrames, boolean withTags) {
+    NetworkTable table = NetworkTableInstance.create().getTable("PiVision");
+    NotePipelineJob notes = new NotePipelineJob(table, null, null, null);
+    AprilTagStage tags = withTags ? new AprilTagStage(new Main.AprilTagConfig(), null, table) : null;
+    long[] processNanos = new long[totalFrames];
+    long[] tagNanos = new long[1];
+    int[] tagRuns = new int[1];
+    CountDownLatch done = new CountDownLatch(1);
+
+    VisionScheduler scheduler = new VisionScheduler(2, table);
+    ReplayFrameSource source = new ReplayFrameSource("replay", replay, kReplayFps);
+    int[] noteRuns = new int[1];
+    scheduler.add("notes", source, 0, 10, frame -> {
+      notes.run(frame);
+      if (noteRuns[0] < totalFrames) {
+        processNanos[noteRuns[0]++] = notes.lastDetection().processNanos;
+        if (noteRuns[0] == totalFrames) {
+          done.countDown();
+        }
+      }
+    });
+    if (tags != null) {
+      scheduler.add("apriltags", source, 0, 5, frame -> {
+        tags.run(frame);
+        tagNanos[0] += tags.lastProcessNanos();
+        tagRuns[0]++;
+      });
+    }
+    scheduler.start();
+    try {
+      done.await();
+      scheduler.stop();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+
+    System.out.println((tags == null ? "notes only" : "notes + apriltag") + ": " + summarize(processNanos)
+        + ", frames grabbed " + source.latestSequence());
+    if (tags != null) {
+      System.out.println("  apriltag job: mean " + String.format("%.2f", tagNanos[0] / 1.0e6 / Math.max(1, tagRuns[0]))
+          + " ms over " + tagRuns[0] + " frames");
+    }
+    return percentile(processNanos, 0.95);
+  }
+
+  /**
+   * Compare bit-packed erode and dilate with OpenCV's on each frame's thresholded mask.
+   */
+  private static void bitmask(FrameReplay replay) {
+    NoteGripPipeline pipeline = new NoteGripPipeline();
+    BitMaskMorphology bitMask = new BitMaskMorphology();
+    Mat frame = new Mat();
+    Mat kernel = new Mat();
+    Mat expected = new Mat();
+    Mat actual = new Mat();
+    Mat diff = new Mat();
+    Point anchor = new Point(-1, -1);
+    Scalar border = new Scalar(-1);
+    long mismatched = 0;
+    long opencvNanos = 0;
+    long bitMaskNanos = 0;
+
+    for (int i = 0; i < replay.size(); i++) {
+      replay.next(frame);
+      pipeline.process(frame);
+      Mat mask = pipeline.hslThresholdOutput();
+      for (int iterations = 1; iterations <= 3; iterations++) {
+        for (boolean erode : new boolean[] {true, false}) {
+          long start = System.nanoTime();
+          if (erode) {
+            Imgproc.erode(mask, expected, kernel, anchor, iterations, Core.BORDER_CONSTANT, border);
+          } else {
+            Imgproc.dilate(mask, expected, kernel, anchor, iterations, Core.BORDER_CONSTANT, border);
+          }
+          long middle = System.nanoTime();
+          if (erode) {
+            bitMask.erode(mask, iterations, border, actual);
+          } else {
+            bitMask.dilate(mask, iterations, border, actual);
+          }
+          long end = System.nanoTime();
+          opencvNanos += middle - start;
+          bitMaskNanos += end - middle;
+
+          Core.compare(expected, actual, diff, Core.CMP_NE);
+          int count = Core.countNonZero(diff);
+          if (count > 0) {
+            System.out.println("frame " + i + ": " + (erode ? "erode" : "dilate") + " x" + iterations
+                + " differs in " + count + " pixels");
+            mismatched += count;
+          }
+        }
+      }
+    }
+    NativeMats.release(frame, kernel, expected, actual, diff);
+
+    System.out.println(String.format("opencv %.2f ms, bitpacked %.2f ms total (includes packing)",
+        opencvNanos / 1.0e6, bitMaskNanos / 1.0e6));
+    if (mismatched > 0) {
+      System.out.println("FAIL: " + mismatched + " pixels differ");
+      System.exit(1);
+    }
+    System.out.println("OK: bit-packed masks match OpenCV on " + replay.size() + " frames");
+  }
+
+  /**
+   * Compare separable morphology with chains of single-iteration OpenCV calls.
+   */
+  private static void separable(FrameReplay replay) {
+    NoteGripPipeline pipeline = new NoteGripPipeline();
+    SeparableMorphology separable = new SeparableMorphology();
+    Mat frame = new Mat();
+    Mat gray = new Mat();
+    Mat expected = new Mat();
+    Mat scratch = new Mat();
+    Mat actual = new Mat();
+    Mat diff = new Mat();
+    Mat wide = Mat.ones(3, 5, CvType.CV_8UC1);
+    Mat[] kernels = {new Mat(), wide};
+    Point anchor = new Point(-1, -1);
+    // GRIP's border, and OpenCV's morphologyDefaultBorderValue()
+    Scalar[] borders = {new Scalar(-1), Scalar.all(Double.MAX_VALUE)};
+    String[] operations = {"erode", "dilate", "open", "close"};
+    long mismatched = 0;
+    long chainNanos = 0;
+    long separableNanos = 0;
+
+    for (int i = 0; i < replay.size(); i++) {
+      replay.next(frame);
+      pipeline.process(frame);
+      Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+      for (Mat input : new Mat[] {pipeline.hslThresholdOutput(), gray}) {
+        for (Mat kernel : kernels) {
+          SeparableMorphology.Element element = SeparableMorphology.Element.of(kernel, anchor);
+          for (Scalar border : borders) {
+            for (int iterations = 1; iterations <= 3; iterations++) {
+              for (int op = 0; op < operations.length; op++) {
+                // erode for erode and open, then the other way round for open and close
+                boolean erodeFirst = op == 0 || op == 2;
+                int steps = op < 2 ? 1 : 2;
+                long start = System.nanoTime();
+                Mat chained = input;
+                for (int step = 0; step < steps; step++) {
+                  boolean erode = erodeFirst == (step == 0);
+                  for (int n = 0; n < iterations; n++) {
+                    Mat next = chained == expected ? scratch : expected;
+                    if (erode) {
+                      Imgproc.erode(chained, next, kernel, anchor, 1, Core.BORDER_CONSTANT, border);
+                    } else {
+                      Imgproc.dilate(chained, next, kernel, anchor, 1, Core.BORDER_CONSTANT, border);
+                    }
+                    chained = next;
+                  }
+                }
+                long middle = System.nanoTime();
+                if (op == 0) {
+                  separable.erode(input, element, iterations, border, actual);
+                } else if (op == 1) {
+                  separable.dilate(input, element, iterations, border, actual);
+                } else if (op == 2) {
+                  separable.open(input, element, iterations, border, actual);
+                } else {
+                  separable.close(input, element, iterations, border, actual);
+                }
+                long end = System.nanoTime();
+                chainNanos += middle - start;
+                separableNanos += end - middle;
+
+                Core.compare(chained, actual, diff, Core.CMP_NE);
+                int count = Core.countNonZero(diff);
+                if (count > 0) {
+                  System.out.println("frame " + i + ": " + operations[op] + " " + element + " x" + iterations
+                      + " differs in " + count + " pixels");
+                  mismatched += count;
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+    NativeMats.release(frame, gray, expected, scratch, actual, diff, wide);
+
+    System.out.println(String.format("iteration chains: %d passes, %.2f ms; separable: %d passes, %.2f ms",
+        separable.chainPasses(), chainNanos / 1.0e6, separable.passes(), separableNanos / 1.0e6));
+    if (mismatched > 0) {
+      System.out.println("FAIL: " + mismatched + " pixels differ");
+      System.exit(1);
+    }
+    System.out.println("OK: separable morphology matches the OpenCV chains on " + replay.size() + " frames");
+  }
+
+  /**
+   * Compare ContourSet's contour measurements with Imgproc's.
+   */
+  private static void contours(FrameReplay replay) {
+    NoteGripPipeline pipeline = new NoteGripPipeline();
+    ContourSet contours = new ContourSet();
+    Mat frame = new Mat();
+    MatOfInt hull = new MatOfInt();
+    MatOfPoint2f contour2f = new MatOfPoint2f();
+    long checked = 0;
+    long mismatched = 0;
+
+    for (int i = 0; i < replay.size(); i++) {
+      replay.next(frame);
+      pipeline.process(frame);
+      List<MatOfPoint> found = pipeline.findContoursOutput();
+      contours.read(found);
+      for (int c = 0; c < found.size(); c++) {
+        MatOfPoint contour = found.get(c);
+        Rect box = Imgproc.boundingRect(contour);
+        double area = Imgproc.contourArea(contour);
+        contour.convertTo(contour2f, CvType.CV_32F);
+        double perimeter = Imgproc.arcLength(contour2f, true);
+        Imgproc.convexHull(contour, hull);
+        Point[] points = contour.toArray();
+        int[] indices = hull.toArray();
+        Point[] hullPoints = new Point[indices.length];
+        for (int h = 0; h < indices.length; h++) {
+          hullPoints[h] = points[indices[h]];
+        }
+        MatOfPoint hullContour = new MatOfPoint(hullPoints);
+        double hullArea = Imgproc.contourArea(hullContour);
+        hullContour.release();
+
+        checked++;
+        if (box.x != contours.minX[c] || box.y != contours.minY[c] || box.width != contours.width[c]
+            || box.height != contours.height[c] || area != contours.area[c]
+            || perimeter != contours.perimeter(c) || hullArea != contours.hullArea(c)) {
+          System.out.println(String.format("frame %d contour %d: imgproc %s area %.1f perimeter %f hull %.1f,"
+              + " flat %dx%d at %d,%d area %.1f perimeter %f hull %.1f", i, c, box, area, perimeter, hullArea,
+              contours.width[c], contours.height[c], contours.minX[c], contours.minY[c], contours.area[c],
+              contours.perimeter(c), contours.hullArea(c)));
+          mismatched++;
+        }
+      }
+    }
+    NativeMats.release(frame, hull, contour2f);
+
+    if (mismatched > 0) {
+      System.out.println("FAIL: " + mismatched + " of " + checked + " contours differ");
+      System.exit(1);
+    }
+    System.out.println("OK: " + checked + " contours match Imgproc on " + replay.size() + " frames");
+  }
+
+  /**
+   * Compare the scanline extractor's detections with the GRIP pipeline's.
+   */
+  private static void scanline(FrameReplay replay) {
+    NoteGripPipeline pipeline = new NoteGripPipeline();
+    ScanlineBlobExtractor extractor = ScanlineBlobExtractor.forNotes();
+    Mat frame = new Mat();
+    long[] gripNanos = new long[replay.size()];
+    long[] scanlineNanos = new long[replay.size()];
+    int bothFound = 0;
+    int neitherFound = 0;
+    int onlyGrip = 0;
+    int onlyScanline = 0;
+    double overlapSum = 0;
+    double centerErrorSum = 0;
+
+    for (int i = 0; i < replay.size(); i++) {
+      replay.next(frame);
+      long start = System.nanoTime();
+      pipeline.process(frame);
+      long middle = System.nanoTime();
+      BlobStats blobs = extractor.process(frame);
+      long end = System.nanoTime();
+      gripNanos[i] = middle - start;
+      scanlineNanos[i] = end - middle;
+
+      // compare the largest target from each, the way LARGEST selection would pick it
+      Rect grip = null;
+      ContourSet contours = pipeline.filteredContours();
+      for (int c = 0; c < contours.count; c++) {
+        Rect r = new Rect(contours.minX[c], contours.minY[c], contours.width[c], contours.height[c]);
+        if (grip == null || r.area() > grip.area()) {
+          grip = r;
+        }
+      }
+      Rect blob = null;
+      for (int b = 0; b < blobs.count; b++) {
+        Rect r = new Rect(blobs.minX[b], blobs.minY[b], blobs.width(b), blobs.height(b));
+        if (blob == null || r.area() > blob.area()) {
+          blob = r;
+        }
+      }
+
+      if (grip == null && blob == null) {
+        neitherFound++;
+      } else if (blob == null) {
+        onlyGrip++;
+      } else if (grip == null) {
+        onlyScanline++;
+      } else {
+        bothFound++;
+        int left = Math.max(grip.x, blob.x);
+        int top = Math.max(grip.y, blob.y);
+        int right = Math.min(grip.x + grip.width, blob.x + blob.width);
+        int bottom = Math.min(grip.y + grip.height, blob.y + blob.height);
+        double intersection = Math.max(0, right - left) * (double) Math.max(0, bottom - top);
+        overlapSum += intersection / (grip.area() + blob.area() - intersection);
+        centerErrorSum += Math.hypot(grip.x + grip.width / 2.0 - (blob.x + blob.width / 2.0),
+            grip.y + grip.height / 2.0 - (blob.y + blob.height / 2.0));
+      }
+    }
+    frame.release();
+
+    int frames = replay.size();
+    System.out.println(String.format("agree on %d of %d frames (%d with a note, %d without); only GRIP %d, only scanline %d",
+        bothFound + neitherFound, frames, bothFound, neitherFound, onlyGrip, onlyScanline));
+    if (bothFound > 0) {
+      System.out.println(String.format("largest target: mean IoU %.3f, mean center error %.1f px",
+          overlapSum / bothFound, centerErrorSum / bothFound));
+    }
+    System.out.println("grip:     " + summarize(gripNanos));
+    System.out.println("scanline: " + summarize(scanlineNanos));
+  }
+
+  /**
+   * Percentiles of a set of durations, in milliseconds.
+   */
+  static String summarize(long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    return String.format("p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+        sorted[sorted.length / 2] / 1.0e6, sorted[(int) (sorted.length * 0.95)] / 1.0e6,
+        sorted[(int) (sorted.length * 0.99)] / 1.0e6, sorted[sorted.length - 1] / 1.0e6);
+  }
+
+  /**
+   * A percentile of some times, picked the same way as {@link #summarize}.
+   */
+  static long percentile(long[] nanos, double fraction) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    return sorted[(int) (sorted.length * fraction)];
+  }
+
+  /**
+   * Run the pipeline over and over and check native memory stays flat.
+   */
+  private static void soak(FrameReplay replay, int totalFrames) {
+    NoteGripPipeline pipeline = new NoteGripPipeline();
+    NativeMats nativeMats = new NativeMats();
+    Mat frame = new Mat();
+    long baselineRss = -1;
+    long lastRss = -1;
+
+    System.out.println("frame,nativeMats,nativeBytes,rssKb,heapKb");
+    for (int i = 1; i <= totalFrames; i++) {
+      replay.next(frame);
+      pipeline.process(frame);
+
+      if (i % kReportInterval == 0) {
+        nativeMats.reset();
+        pipeline.measureNativeMemory(nativeMats);
+        Runtime runtime = Runtime.getRuntime();
+        lastRss = residentKb();
+        if (baselineRss < 0) {
+          // first interval is the warm-up, everything after it should be flat
+          baselineRss = lastRss;
+        }
+        System.out.println(i + "," + nativeMats.count() + "," + nativeMats.bytes() + "," + lastRss + ","
+            + (runtime.totalMemory() - runtime.freeMemory()) / 1024);
+      }
+    }
+
+    frame.release();
+
+    if (baselineRss > 0 && lastRss > baselineRss * (1 + kAllowedRssGrowth)) {
+      System.out.println("FAIL: RSS grew from " + baselineRss + " kB to " + lastRss + " kB");
+      System.exit(1);
+    }
+    System.out.println("OK: RSS " + baselineRss + " kB -> " + lastRss + " kB");
+  }
+}
@@ -0,0 +1,142 @@
+import org.opencv.core.Mat;
+
+/**
+ * A stream of frames with a grabber thread that always keeps just the newest one.
+ *
+ * <p>Frames are never queued: each grab replaces the previous frame, and consumers copy out
+ * whatever is newest when they are ready for it. A slow consumer therefore skips stale frames
+ * instead of falling further and further behind.
+ */
+public abstract class FrameSource {
+
+  /**
+   * A consumer's copy of a frame.
+   */
+  @SuppressWarnings("MemberName")
+  public static class Frame {
+    public final Mat mat = new Mat();
+    public long sequence;      // increases by one per grabbed frame
+    public long captureTime;   // microseconds, same time base as cscore
+    public long skipped;       // frames grabbed since this consumer's previous frame, never seen
+    public long copyNanos;     // time spent copying the frame out of the source
+  }
+
+  private final String name;
+  private Runnable onFrame = () -> { };
+  private Thread grabber;
+
+  // guarded by this
+  private Mat latest = new Mat();
+  private long latestSequence;
+  private long latestCaptureTime;
+  private long grabFailures;
+
+  protected FrameSource(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Block until the next frame is available and store it in dst.
+   *
+   * @return capture time in microseconds, or 0 on error
+   */
+  protected abstract long grabFrame(Mat dst);
+
+  /**
+   * Description of the last grab error.
+   */
+  protected abstract String getError();
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The current time in microseconds, in the same time base as capture times.
+   */
+  public long now() {
+    return System.nanoTime() / 1000;
+  }
+
+  /**
+   * Set a callback run on the grabber thread after every new frame.
+   */
+  public void setOnFrame(Runnable onFrame) {
+    this.onFrame = onFrame;
+  }
+
+  /**
+   * Start the grabber thread.
+   */
+  public void start() {
+    grabber = new Thread(this::run, "FrameSource-" + name);
+    grabber.setDaemon(true);
+    grabber.start();
+  }
+
+  /**
+   * Stop the grabber thread and wait for it to finish its current grab.
+   */
+  public void stop() throws InterruptedException {
+    if (grabber != null) {
+      grabber.interrupt();
+      grabber.join();
+      grabber = null;
+    }
+  }
+
+  private void run() {
+    Mat grabbing = new Mat();
+    while (!Thread.interrupted()) {
+      VisionEvents.Frame frameEvent = new VisionEvents.Frame();
+      frameEvent.begin();
+      long captureTime = grabFrame(grabbing);
+      if (captureTime == 0) {
+        synchronized (this) {
+          grabFailures++;
+        }
+        System.err.println("Frame grab failed on " + name + ": " + getError());
+        frameEvent.dropped = true;
+        frameEvent.end();
+        frameEvent.commit();
+        continue;
+      }
+
+      // swap rather than copy, the old latest becomes the next grab buffer
+      synchronized (this) {
+        Mat previous = latest;
+        latest = grabbing;
+        grabbing = previous;
+        latestSequence++;
+        latestCaptureTime = captureTime;
+      }
+      onFrame.run();
+    }
+  }
+
+  /**
+   * Sequence number of the newest frame, 0 before the first one.
+   */
+  public synchronized long latestSequence() {
+    return latestSequence;
+  }
+
+  /**
+   * Frames that failed to grab since start.
+   */
+  public synchronized long grabFailures() {
+    return grabFailures;
+  }
+
+  /**
+   * Copy the newest frame into dst, noting how many frames were skipped since dst's last frame.
+   */
+  public synchronized void copyLatest(Frame dst) {
+    long start = System.nanoTime();
+    latest.copyTo(dst.mat);
+    dst.skipped = dst.sequence == 0 ? 0 : Math.max(0, latestSequence - dst.sequence - 1);
+    dst.sequence = latestSequence;
+    dst.captureTime = latestCaptureTime;
+    dst.copyNanos = System.nanoTime() - start;
+  }
+}
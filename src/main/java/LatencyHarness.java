@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.wpi.first.networktables.BooleanSubscriber;
+import edu.wpi.first.networktables.DoubleSubscriber;
+import edu.wpi.first.networktables.IntegerSubscriber;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEvent;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.networktables.PubSubOption;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Measures the latency from a frame entering the vision loop to its detection arriving at a
+ * NetworkTables subscriber, with no camera and no robot.
+ *
+ * <pre>
+ *   java -cp java-multiCameraServer-all.jar LatencyHarness [frames] [fps]
+ * </pre>
+ * An NT4 server is started in this process on localhost, standing in for the robot, and the
+ * vision side connects to it as a client the same way Main does. A synthetic source draws a note
+ * at a known position that moves every frame, and a {@link NotePipelineJob} runs on it under a
+ * {@link VisionScheduler}. The server subscribes to PiVision/FrameNumber and the target topics.
+ *
+ * <p>Latency runs from the moment a frame is handed to the scheduler to the moment the server's
+ * listener sees that frame's FrameNumber, so it covers scheduling, the pipeline, publishing and
+ * the NT connection, but not the robot program's own loop period. Accuracy is how many frames
+ * arrived, how many of those had a note, and how far the published center was from where the
+ * note was drawn.
+ */
+public final class LatencyHarness {
+  private static final int kWidth = 320;
+  private static final int kHeight = 240;
+  private static final int kNoteRadius = 18;
+  private static final double kPathPeriodFrames = 90;
+  private static final int kNt3Port = 1745;  // away from the defaults so a real server can run
+  private static final int kNt4Port = 5820;
+  private static final long kConnectTimeoutMillis = 5000;
+  private static final long kSettleMillis = 500;
+
+  // orange in the note pipeline's HLS range on a dark gray floor
+  private static final Scalar kNoteColor = new Scalar(0, 128, 255);
+  private static final Scalar kFloorColor = new Scalar(40, 40, 40);
+
+  static {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  /**
+   * A source that draws one note per frame along a fixed path and records when each frame was
+   * handed over.
+   */
+  private static final class SyntheticNoteSource extends FrameSource {
+    private final int frames;
+    private final long periodNanos;
+    private final AtomicLongArray injectNanos;
+    private int sequence;
+    private long nextFrame;
+
+    SyntheticNoteSource(int frames, double fps) {
+      super("synthetic");
+      this.frames = frames;
+      this.periodNanos = (long) (1.0e9 / fps);
+      this.injectNanos = new AtomicLongArray(frames + 1);
+    }
+
+    @Override
+    protected long grabFrame(Mat dst) {
+      try {
+        if (sequence == frames) {
+          // all frames are out, wait to be stopped
+          Thread.sleep(Long.MAX_VALUE);
+        }
+        long now = System.nanoTime();
+        if (nextFrame == 0) {
+          nextFrame = now;
+        }
+        if (now < nextFrame) {
+          Thread.sleep((nextFrame - now) / 1000000, (int) ((nextFrame - now) % 1000000));
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return 0;
+      }
+      nextFrame += periodNanos;
+
+      // FrameSource numbers frames from 1 in grab order, as does this
+      sequence++;
+      dst.create(kHeight, kWidth, CvType.CV_8UC3);
+      dst.setTo(kFloorColor);
+      Imgproc.circle(dst, new Point(noteX(sequence), noteY(sequence)), kNoteRadius, kNoteColor, -1);
+      long now = System.nanoTime();
+      injectNanos.set(sequence, now);
+      return now / 1000;
+    }
+
+    @Override
+    protected String getError() {
+      return "synthetic source stopped";
+    }
+  }
+
+  private LatencyHarness() {
+  }
+
+  static int noteX(long sequence) {
+    double phase = 2 * Math.PI * sequence / kPathPeriodFrames;
+    return (int) Math.round(kWidth / 2 + (kWidth / 2 - 2 * kNoteRadius) * Math.sin(phase));
+  }
+
+  static int noteY(long sequence) {
+    double phase = 2 * Math.PI * sequence / kPathPeriodFrames;
+    return (int) Math.round(kHeight / 2 + (kHeight / 2 - 2 * kNoteRadius) * Math.sin(2 * phase));
+  }
+
+  /*** Harness ***/
+  public static void main(String... args) throws IOException, InterruptedException {
+    int frames = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+    double fps = args.length > 1 ? Double.parseDouble(args[1]) : 30;
+
+    // the robot end
+    NetworkTableInstance server = NetworkTableInstance.create();
+    String persist = Files.createTempDirectory("latency-harness").resolve("networktables.json").toString();
+    server.startServer(persist, "127.0.0.1", kNt3Port, kNt4Port);
+    NetworkTable robotTable = server.getTable("PiVision");
+    IntegerSubscriber subFrameNumber = robotTable.getIntegerTopic("FrameNumber")
+        .subscribe(0, PubSubOption.sendAll(true));
+    BooleanSubscriber subDetectedNote = robotTable.getBooleanTopic("DetectedNote")
+        .subscribe(false, PubSubOption.sendAll(true));
+    DoubleSubscriber subXCenter = robotTable.getDoubleTopic("XCenter")
+        .subscribe(0, PubSubOption.sendAll(true));
+    DoubleSubscriber subYCenter = robotTable.getDoubleTopic("YCenter")
+        .subscribe(0, PubSubOption.sendAll(true));
+
+    // the Pi end, connected the way Main connects
+    NetworkTableInstance client = NetworkTableInstance.create();
+    client.startClient4("latency-harness");
+    client.setServer("127.0.0.1", kNt4Port);
+    long connectDeadline = System.currentTimeMillis() + kConnectTimeoutMillis;
+    while (!client.isConnected()) {
+      if (System.currentTimeMillis() > connectDeadline) {
+        System.err.println("Could not connect to the local NT server on port " + kNt4Port);
+        System.exit(1);
+      }
+      Thread.sleep(10);
+    }
+
+    SyntheticNoteSource source = new SyntheticNoteSource(frames, fps);
+    long[] latencyNanos = new long[frames];
+    int[] arrived = new int[1];
+    int[] detected = new int[1];
+    double[] centerError = new double[2];  // sum and max over detected frames
+
+    server.addListener(subFrameNumber, EnumSet.of(NetworkTableEvent.Kind.kValueAll), event -> {
+      long arrival = System.nanoTime();
+      long sequence = event.valueData.value.getInteger();
+      if (sequence < 1 || sequence > frames) {
+        return;
+      }
+      // FrameNumber is published after the target values, so unless this listener is a whole
+      // frame behind, the subscribers hold this frame's target
+      synchronized (latencyNanos) {
+        latencyNanos[arrived[0]++] = arrival - source.injectNanos.get((int) sequence);
+        if (subDetectedNote.get()) {
+          detected[0]++;
+          double error = Math.hypot(subXCenter.get() - noteX(sequence), subYCenter.get() - noteY(sequence));
+          centerError[0] += error;
+          centerError[1] = Math.max(centerError[1], error);
+        }
+      }
+    });
+
+    VisionScheduler scheduler = new VisionScheduler(1, client.getTable("PiVision"));
+    NotePipelineJob notes = new NotePipelineJob(client.getTable("PiVision"), null, null, null);
+    scheduler.add("notes", source, 0, 10, notes);
+    scheduler.start();
+    while (source.latestSequence() < frames) {
+      Thread.sleep(100);
+    }
+    // let the last frames through the pipeline and across the connection
+    Thread.sleep(kSettleMillis);
+    scheduler.stop();
+    server.waitForListenerQueue(1.0);
+
+    long[] received;
+    synchronized (latencyNanos) {
+      received = Arrays.copyOf(latencyNanos, arrived[0]);
+    }
+    System.out.println(String.format("%d frames at %.0f fps: %d arrived, %d with a note", frames, fps,
+        received.length, detected[0]));
+    if (received.length == 0) {
+      System.err.println("No detections reached the subscriber");
+      System.exit(1);
+    }
+    System.out.println("frame to subscriber: " + FrameReplay.summarize(received));
+    if (detected[0] > 0) {
+      System.out.println(String.format("center error: mean %.2f px, max %.2f px",
+          centerError[0] / detected[0], centerError[1]));
+    }
+
+    client.close();
+    server.close();
+  }
+}
@@ -8,6 +8,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.function.Supplier;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -20,20 +21,14 @@ import edu.wpi.first.cameraserver.CameraServer;
 import edu.wpi.first.cscore.MjpegServer;
 import edu.wpi.first.cscore.UsbCamera;
 import edu.wpi.first.cscore.CvSource;
+import edu.wpi.first.cscore.VideoEvent;
+import edu.wpi.first.cscore.VideoListener;
+import edu.wpi.first.cscore.VideoMode;
 import edu.wpi.first.cscore.VideoSource;
-import edu.wpi.first.networktables.BooleanPublisher;
-import edu.wpi.first.networktables.DoublePublisher;
 import edu.wpi.first.networktables.NetworkTable;
 import edu.wpi.first.networktables.NetworkTableEvent;
 import edu.wpi.first.networktables.NetworkTableInstance;
-import edu.wpi.first.vision.VisionThread;
 
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.Point;
-import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
 
 /*
    JSON format:
@@ -65,6 +60,25 @@ import org.opencv.imgproc.Imgproc;
                        }
                    ]
                }
+               "calibration": {                         // optional
+                   "width": <calibration image width>
+                   "height": <calibration image height>
+                   "fx": <focal length x, pixels>
+                   "fy": <focal length y, pixels>
+                   "cx": <principal point x, pixels>
+                   "cy": <principal point y, pixels>
+                   "distortion": [k1, k2, p1, p2, k3]   // optional
+               }
+               "mount": {                               // optional, needs calibration
+                   "height": <lens height above the floor, meters> // without a mount, no distances
+                   "pitch": <downward tilt, degrees>
+                   "x": <meters forward of the robot centre> // optional, for fusion
+                   "y": <meters left of the robot centre> // optional, for fusion
+                   "yaw": <degrees turned left from straight ahead> // optional, for fusion
+               }
+               "low latency": {                         // optional, also runs at the mode's highest fps
+                   "exposure": <manual exposure, replaces "exposure"> // optional
+               }
            }
        ]
        "switched cameras": [
@@ -75,6 +89,66 @@ import org.opencv.imgproc.Imgproc;
                // if NT value is a double, it's treated as an integer index
            }
        ]
+       "recorder": {                                    // optional
+           "path": <ring file path, e.g. "/home/pi/match.pvr">
+           "slots": <number of frames kept>             // optional
+           "thumbnail width": <pixels, 0 disables>      // optional
+           "thumbnail interval": <every Nth frame>      // optional
+           "thumbnail quality": <JPEG quality 0-100>    // optional
+           "thumbnail max bytes": <space per thumbnail> // optional
+       }
+       "flight recorder": {                             // optional
+           "settings": <JFR settings, "default" or "profile">  // optional
+           "max age": <seconds kept>                    // optional
+           "max size": <megabytes kept>                 // optional
+           "slow frame ms": <only record frames slower than this> // optional
+           "dump dir": <where DumpFlightRecording writes> // optional
+       }
+       "apriltag": {                                    // optional
+           "family": <tag family, e.g. "tag36h11">      // optional
+           "decimation": <quad decimate factor>         // optional
+           "threads": <detector threads>                // optional
+           "max hamming": <bit errors corrected>        // optional
+           "tag size": <black square edge, meters>      // optional
+           "roi margin": <fraction of tag box added around last tags> // optional
+           "full search interval": <frames between full frame searches> // optional
+       }
+       "pipelines": [                                   // optional, default notes on camera 0
+           {
+               "name": <pipeline name>
+               "type": <"notes", "scanline" or "apriltag">
+               "camera": <camera index>                 // optional, default 0
+               "rate": <target runs per second, 0 for every frame> // optional
+               "priority": <higher runs first>          // optional
+               "threshold": <"opencv" or "vector">      // optional, notes only
+               "morphology": <"opencv", "vector", "bitpacked" or "separable"> // optional, notes only
+               "shared memory": <file to export frames to, e.g. /dev/shm/pivision-notes> // optional, notes only
+           }
+       ]
+       "scheduler": {                                   // optional
+           "workers": <worker threads>                  // optional
+       }
+       "occupancy": {                                   // optional, notes pipelines on calibrated cameras
+           "cell size": <grid cell edge, meters>        // optional
+           "forward": <grid depth ahead of the camera, meters> // optional
+           "width": <grid width centred on the camera, meters> // optional
+           "half life": <seconds for a cell's confidence to halve> // optional
+           "hit weight": <fraction of the way to 1 each sighting moves a cell> // optional
+           "min confidence": <cells below this are not published> // optional
+           "top": <most confident cells published>      // optional
+       }
+       "fusion": {                                      // optional, notes pipelines on calibrated cameras
+           "merge distance": <sightings closer than this are one note, meters> // optional
+           "max skew ms": <cameras this far behind the newest frame are left out> // optional
+       }
+       "camera supervisor": {                           // optional
+           "stall ms": <time without frames before a camera is reopened> // optional
+           "retry ms": <time between attempts to reopen it> // optional
+       }
+       "robot state": {                                 // optional
+           "disabled rate": <runs per second while disabled or no robot is connected, 0 for full rate> // optional
+           "driver feed when disabled": <true to keep sending the driver feed> // optional
+       }
    }
  */
 
@@ -87,6 +161,10 @@ public final class Main {
     public String path;
     public JsonObject config;
     public JsonElement streamConfig;
+    public CameraCalibration calibration;
+    public boolean lowLatency;
+    public int lowLatencyExposure = -1;   // -1 keeps the configured exposure
+    public TargetFusion.Mount mount = new TargetFusion.Mount(0, 0, 0);
   }
 
   @SuppressWarnings("MemberName")
@@ -95,15 +173,101 @@ public final class Main {
     public String key;
   };
 
+  @SuppressWarnings("MemberName")
+  public static class RecorderConfig {
+    public String path;
+    public int slots = 9000;              // 5 minutes at 30 fps
+    public int thumbnailWidth = 80;
+    public int thumbnailInterval = 5;
+    public int thumbnailQuality = 50;
+    public int thumbnailMaxBytes = 4096;
+  }
+
+  @SuppressWarnings("MemberName")
+  public static class FlightRecorderConfig {
+    public String settings = "default";
+    public int maxAgeSeconds = 600;
+    public int maxSizeMegabytes = 64;
+    public int slowFrameMillis = 0;
+    public String dumpDirectory = "/home/pi/recordings";
+  }
+
+  @SuppressWarnings("MemberName")
+  public static class AprilTagConfig {
+    public String family = "tag36h11";
+    public float decimation = 2.0f;
+    public int threads = 2;
+    public int maxHammingDistance = 0;
+    public double tagSize = 0.1651;       // 6.5 inches
+    public double roiMargin = 0.5;
+    public int fullSearchInterval = 10;
+  }
+
+  @SuppressWarnings("MemberName")
+  public static class OccupancyConfig {
+    public double cellSize = 0.25;
+    public double forward = 4.0;
+    public double width = 4.0;
+    public double halfLife = 0.5;
+    public double hitWeight = 0.5;
+    public double minConfidence = 0.1;
+    public int top = 5;
+  }
+
+  @SuppressWarnings("MemberName")
+  public static class PipelineConfig {
+    public String name;
+    public String type;
+    public int camera = 0;
+    public double rate = 0;
+    public int priority = 0;
+    public MaskBackend threshold = MaskBackend.OPENCV;
+    public MaskBackend morphology = MaskBackend.OPENCV;
+    public String sharedMemory;
+  }
+
+  @SuppressWarnings("MemberName")
+  public static class FusionConfig {
+    public double mergeDistance = 0.3;
+    public long maxSkewMillis = 50;
+  }
+
+  @SuppressWarnings("MemberName")
+  public static class SupervisorConfig {
+    public long stallMillis = 1000;
+    public long retryMillis = 500;
+  }
+
+  @SuppressWarnings("MemberName")
+  public static class RobotStateConfig {
+    public double disabledRate = 5;
+    public boolean driverFeedWhenDisabled = false;
+  }
+
   public static int team = 4039;
   public static boolean server;
   public static List<CameraConfig> cameraConfigs = new ArrayList<>();
   public static List<SwitchedCameraConfig> switchedCameraConfigs = new ArrayList<>();
   public static List<VideoSource> cameras = new ArrayList<>();
+  public static List<MjpegServer> cameraServers = new ArrayList<>();
+  public static List<MjpegServer> switchedServers = new ArrayList<>();
+  // held while a camera is swapped for a reopened one, and by anything reading cameras after startup
+  public static final Object cameraLock = new Object();
+  public static RecorderConfig recorderConfig;
+  public static FlightRecorderConfig flightRecorderConfig;
+  public static AprilTagConfig aprilTagConfig;
+  public static OccupancyConfig occupancyConfig;
+  public static FusionConfig fusionConfig;
+  public static List<PipelineConfig> pipelineConfigs = new ArrayList<>();
+  public static int schedulerWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+  public static RobotStateConfig robotStateConfig = new RobotStateConfig();
+  public static SupervisorConfig supervisorConfig = new SupervisorConfig();
 
-  private static int threadCounter = 0;
-  private static long threadCounterTime = 0;
-  private static long threadsPerSecond;
+  static CvSource outputStream;
+  static MatchRecorder matchRecorder;
+  static VisionScheduler scheduler;
+  static RobotState robotState;
+  static VideoListener cameraListener;
 
   public static int kCenterPixelOffset = 0;  // Adjust for sligtly Off Center Camera.  Positive moves the C
   public static int kCameraXFOV = 70; // horixontal FOV of the camera in Degrees
@@ -112,29 +276,6 @@ public final class Main {
   public static boolean kSimulatorMode = false; // Use Robot Simulator
   public static String kSimulatorHost = "Dads_Laptop"; // Use Robot Simulator
 
-  //Network Table Publishers
-  static BooleanPublisher pubDetectedNote;
-  static DoublePublisher pubXCenter;
-  static DoublePublisher pubYCenter;
-  static DoublePublisher pubWidth;
-  static DoublePublisher pubHeight;
-  static DoublePublisher pubAngle;
-  static DoublePublisher pubThreadCounter;
-  static DoublePublisher pubThreadCounterTime;      
-  static DoublePublisher pubThreadsPerSecond;
-  
-  private static enum detectionMethodEnum {
-    LOWEST,
-    LARGEST
-    //add more in future if needed
-  };
-
-  // Set the Method to choose the Object returned.
-  // LOWEST returns the Object with teh smallest Y Center
-  // LARGEST returns teh Object with the Largest Area
-  private static detectionMethodEnum detectionMethod = detectionMethodEnum.LOWEST;
-
-
   private Main() {
     
   }
@@ -184,16 +325,11 @@ public final class Main {
     }
     NetworkTable piVisionTable = ntinst.getTable("PiVision");
 
-    // Setup Network Table Publisher Topics
-    pubDetectedNote = piVisionTable.getBooleanTopic("DetectedNote").publish();
-    pubXCenter = piVisionTable.getDoubleTopic("XCenter").publish();
-    pubYCenter = piVisionTable.getDoubleTopic("YCenter").publish();
-    pubWidth = piVisionTable.getDoubleTopic("Width").publish();
-    pubHeight = piVisionTable.getDoubleTopic("Height").publish();
-    pubAngle = piVisionTable.getDoubleTopic("Angle").publish();
-    pubThreadCounter = piVisionTable.getDoubleTopic("ThreadCounter").publish();
-    pubThreadCounterTime  = piVisionTable.getDoubleTopic("ThreadCounterTime").publish();      
-    pubThreadsPerSecond  = piVisionTable.getDoubleTopic("ThreadsPerSecond").publish();
+    // start flight recording before the cameras so their connect events are captured
+    if (flightRecorderConfig != null) {
+      VisionEvents.startRecording(flightRecorderConfig, piVisionTable);
+    }
+    VisionEvents.configLoaded(configFile, cameraConfigs.size(), true);
 
     // start cameras
     for (CameraConfig config : cameraConfigs) {
@@ -202,109 +338,118 @@ public final class Main {
 
     // start switched cameras
     for (SwitchedCameraConfig config : switchedCameraConfigs) {
-      startSwitchedCamera(config);
+      switchedServers.add(startSwitchedCamera(config));
     }
     
     // Start Driver Feed
-    CvSource outputStream = CameraServer.putVideo("DriverFeed", 240, 180);
+    outputStream = CameraServer.putVideo("DriverFeed", 240, 180);
 
-    // start image processing on camera 0 if present
-    if (cameras.size() >= 1) {
-      VisionThread visionThread = new VisionThread(cameras.get(0),
-   //          new GreenBinGripPL(), pipeline -> {
-             new NoteGripPipeline(), pipeline -> {
-    
-        // grab current frame from Pipeline for futre processing and feed to drivers
-        Mat currentFrame = pipeline.maskOutput();
-                
-        // continue with Image processing only if Pipline detects notes
-        if (!pipeline.filterContoursOutput().isEmpty()) {
-              int selectedContourIndex = 0;
-              float selectedContourValue = 0;
-              int currentIndex = 0;
-          
-          // LARGEST dectect mode slects the object with the largest area of all the detected Objects.
-          if (detectionMethod == detectionMethodEnum.LARGEST){
-             
-              // Loop through all detected object contours and select the one with the largest area as our main target
-              for (MatOfPoint matOfPoint : pipeline.filterContoursOutput()) {
-                int currentContourArea = Imgproc.boundingRect(matOfPoint).height * Imgproc.boundingRect(matOfPoint).width;
-                if (currentContourArea > selectedContourValue) {
-                  selectedContourIndex = currentIndex;
-                  selectedContourValue = currentContourArea;
-                }
-                currentIndex++;
-              }
-            }
-            // LOWEST dection mode selects the object with the lowest Y center
-            else if (detectionMethod == detectionMethodEnum.LOWEST) {
-              selectedContourIndex = 0;
-              selectedContourValue = 8000;
-              currentIndex = 0;
-              // Loop through all detected object contours and select the one with the smallest Y co-ordinate as our main target
-              for (MatOfPoint matOfPoint : pipeline.filterContoursOutput()) {
-                int currentContourYValue = Imgproc.boundingRect(matOfPoint).y;
-      
-                if (currentContourYValue > selectedContourValue) {
-                  selectedContourIndex = currentIndex;
-                  selectedContourValue = currentContourYValue;
-                }
-                currentIndex++;
-              }
-            }     
+    // start match recorder if configured
+    if (recorderConfig != null) {
+      try {
+        matchRecorder = new MatchRecorder(recorderConfig);
+      } catch (IOException ex) {
+        System.err.println("Could not open match recorder [" + recorderConfig.path + "]: " + ex);
+      }
+    }
 
-            
-            Rect r = Imgproc.boundingRect(pipeline.filterContoursOutput().get(selectedContourIndex));
-      
-            int centerX = r.x + (r.width/2);
-            int centerY = r.y + (r.height/2);
-              
-            Imgproc.rectangle(currentFrame, r, new Scalar(0, 255,0),5);
-            Imgproc.drawContours(currentFrame, pipeline.filterContoursOutput(), selectedContourIndex, new Scalar(255, 0, 0));
-
-            //Update Network Tables
-            outputStream.putFrame(currentFrame);
-            pubDetectedNote.set(true);
-            pubXCenter.set(centerX);
-            pubYCenter.set(centerY);
-            pubWidth.set(r.width);
-            pubHeight.set(r.height);
-            pubAngle.set(((float)centerX-((float)(kCameraXResolution/2-kCenterPixelOffset))) / ((float)kCameraXResolution/(float)kCameraXFOV));
-          }
-          else{
-            Imgproc.putText(currentFrame, "No Note detected!!!", new Point(30, 30), 0, 0.75, new Scalar(0, 0, 255), 2);
-            // Update Shuffleboard
-            outputStream.putFrame(currentFrame);
-            pubDetectedNote.set(false);
-            pubXCenter.set(0);
-            pubYCenter.set(0);
-            pubWidth.set(0);
-            pubHeight.set(0);
-            pubAngle.set(0);
+    // one frame source per camera, shared by every pipeline on that camera
+    // and a supervisor that reopens any camera that stops delivering frames
+    List<FrameSource> frameSources = new ArrayList<>();
+    CameraSupervisor supervisor = new CameraSupervisor(piVisionTable, supervisorConfig.stallMillis,
+        supervisorConfig.retryMillis);
+    for (int i = 0; i < cameras.size(); i++) {
+      CameraFrameSource source = new CameraFrameSource(cameras.get(i));
+      int index = i;
+      supervisor.watch(source, () -> reopenCamera(index, source));
+      frameSources.add(source);
+    }
+    cameraListener = new VideoListener(event -> {
+      // only a current camera; events from one a reopen has closed arrive late and are ignored
+      synchronized (cameraLock) {
+        for (VideoSource camera : cameras) {
+          if (camera.getHandle() == event.sourceHandle) {
+            supervisor.disconnected(camera.getName());
           }
-                 
-         //Calculating Threads per Second method 2, flowchart by Steve
-         threadCounter++;
-        
-        if (((long)System.currentTimeMillis()/1000)  > threadCounterTime) {
-          threadsPerSecond = threadCounter;
-          threadCounterTime = ((long)System.currentTimeMillis()/1000);
-          threadCounter = 0;
         }
-        
-        // Publish Performace Stats to Network Tables
-        pubThreadCounter.set(threadCounter);
-        pubThreadCounterTime.set(threadCounterTime);      
-        pubThreadsPerSecond.set(threadsPerSecond);
-        
-        // Update network tables now - Don't wait for the 100ms cycle.
-        ntinst.flush();
-
-        });
+      }
+    }, VideoEvent.Kind.kSourceDisconnected.getValue(), false);
 
-      visionThread.start();
+    // schedule the pipelines on a shared pool of workers
+    scheduler = new VisionScheduler(schedulerWorkers, piVisionTable);
+    boolean legacyNoteTopics = true;
+    boolean legacyTagTopics = true;
+    TargetFusion fusion = fusionConfig != null ? new TargetFusion(fusionConfig, piVisionTable) : null;
+    List<NotePipelineJob> driverFeedJobs = new ArrayList<>();
+    for (PipelineConfig config : pipelineConfigs) {
+      if (config.camera < 0 || config.camera >= frameSources.size()) {
+        System.err.println("Pipeline '" + config.name + "' uses camera " + config.camera + " which is not running, skipping");
+        continue;
+      }
+      CameraCalibration calibration = cameraConfigs.get(config.camera).calibration;
+      VisionScheduler.Job job;
+      if ("notes".equals(config.type) || "scanline".equals(config.type)) {
+        // scanline finds notes in one streaming pass instead of running the GRIP pipeline
+        ScanlineBlobExtractor scanline = "scanline".equals(config.type) ? ScanlineBlobExtractor.forNotes() : null;
+        // the first note pipeline keeps the original PiVision topics, the driver feed and the recorder
+        NotePipelineJob notes;
+        if (legacyNoteTopics) {
+          notes = new NotePipelineJob(piVisionTable, calibration, outputStream, matchRecorder, scanline);
+          driverFeedJobs.add(notes);
+          legacyNoteTopics = false;
+        } else {
+          notes = new NotePipelineJob(piVisionTable.getSubTable(config.name), calibration, null, null, scanline);
+        }
+        notes.pipeline().setBackends(config.threshold, config.morphology);
+        if (config.sharedMemory != null) {
+          try {
+            notes.setSharedExport(new SharedFrameExport(config.sharedMemory));
+          } catch (IOException ex) {
+            System.err.println("Pipeline '" + config.name + "' could not open shared memory export '"
+                + config.sharedMemory + "': " + ex);
+          }
+        }
+        if (occupancyConfig != null) {
+          if (calibration != null) {
+            notes.startOccupancyGrid(occupancyConfig);
+          } else {
+            System.err.println("Pipeline '" + config.name + "' has no camera calibration, no occupancy grid");
+          }
+        }
+        if (fusion != null) {
+          if (calibration != null && config.camera < TargetFusion.kMaxCameras) {
+            fusion.setMount(config.camera, cameraConfigs.get(config.camera).mount);
+            notes.setFusion(fusion, config.camera);
+          } else {
+            System.err.println("Pipeline '" + config.name + "' needs a calibrated camera below index " + TargetFusion.kMaxCameras + " for fusion");
+          }
+        }
+        job = notes;
+      } else if ("apriltag".equals(config.type)) {
+        // the first tag pipeline keeps PiVision/AprilTags, later ones go under their own table
+        NetworkTable tagTable = legacyTagTopics ? piVisionTable : piVisionTable.getSubTable(config.name);
+        legacyTagTopics = false;
+        job = new AprilTagStage(aprilTagConfig != null ? aprilTagConfig : new AprilTagConfig(), calibration, tagTable);
+      } else {
+        System.err.println("Pipeline '" + config.name + "' has unknown type [" + config.type + "], skipping");
+        continue;
+      }
+      scheduler.add(config.name, frameSources.get(config.camera), config.rate, config.priority, job);
     }
 
+    // throttle everything while the robot is disabled, back to full rate as soon as it enables
+    robotState = new RobotState(ntinst, piVisionTable);
+    robotState.setOnChange(mode -> {
+      boolean enabled = mode.isEnabled();
+      scheduler.setThrottle(enabled ? 0 : robotStateConfig.disabledRate);
+      for (NotePipelineJob job : driverFeedJobs) {
+        job.setDriverFeedPaused(!enabled && !robotStateConfig.driverFeedWhenDisabled);
+      }
+    });
+    robotState.start();
+    scheduler.start();
+    supervisor.start();
+
     // loop forever
     for (;;) {
       try {
@@ -348,12 +493,83 @@ public final class Main {
     // stream properties
     cam.streamConfig = config.get("stream");
 
+    // where it sits on the robot (optional)
+    if (config.has("mount")) {
+      JsonObject mount = config.get("mount").getAsJsonObject();
+      cam.mount = new TargetFusion.Mount(
+          mount.has("x") ? mount.get("x").getAsDouble() : 0,
+          mount.has("y") ? mount.get("y").getAsDouble() : 0,
+          mount.has("yaw") ? mount.get("yaw").getAsDouble() : 0);
+    }
+
+    // calibration (optional)
+    if (config.has("calibration")) {
+      cam.calibration = readCalibrationConfig(cam.name, config.get("calibration").getAsJsonObject(),
+          config.has("mount") ? config.get("mount").getAsJsonObject() : new JsonObject());
+      if (cam.calibration == null) {
+        return false;
+      }
+    }
+
+    // low latency capture (optional)
+    if (config.has("low latency")) {
+      JsonObject lowLatency = config.get("low latency").getAsJsonObject();
+      cam.lowLatency = true;
+      if (lowLatency.has("exposure")) {
+        cam.lowLatencyExposure = lowLatency.get("exposure").getAsInt();
+      }
+    }
+
     cam.config = config;
 
     cameraConfigs.add(cam);
     return true;
   }
 
+  /**
+   * Read a camera's calibration and mounting.
+   */
+  public static CameraCalibration readCalibrationConfig(String cameraName, JsonObject calibration, JsonObject mount) {
+    for (String key : new String[] {"width", "height", "fx", "fy", "cx", "cy"}) {
+      if (!calibration.has(key)) {
+        parseError("camera '" + cameraName + "': calibration is missing [" + key + "]");
+        return null;
+      }
+    }
+
+    double[] distortion = new double[0];
+    if (calibration.has("distortion")) {
+      JsonArray coefficients = calibration.get("distortion").getAsJsonArray();
+      distortion = new double[coefficients.size()];
+      for (int i = 0; i < distortion.length; i++) {
+        distortion[i] = coefficients.get(i).getAsDouble();
+      }
+    }
+
+    // without a mount there are angles but no floor distances; a mount with no height is a mistake
+    double mountHeight = 0;
+    if (mount.has("height")) {
+      mountHeight = mount.get("height").getAsDouble();
+    } else if (mount.size() > 0) {
+      parseError("camera '" + cameraName + "': mount is missing [height]");
+      return null;
+    } else {
+      System.out.println("camera '" + cameraName + "': no mount, so no floor distances");
+    }
+    double mountPitch = mount.has("pitch") ? mount.get("pitch").getAsDouble() : 0;
+
+    return new CameraCalibration(
+        calibration.get("width").getAsInt(),
+        calibration.get("height").getAsInt(),
+        calibration.get("fx").getAsDouble(),
+        calibration.get("fy").getAsDouble(),
+        calibration.get("cx").getAsDouble(),
+        calibration.get("cy").getAsDouble(),
+        distortion,
+        mountHeight,
+        mountPitch);
+  }
+
   /**
    * Read single switched camera configuration.
    */
@@ -380,6 +596,198 @@ public final class Main {
     return true;
   }
 
+  /**
+   * Read match recorder configuration.
+   */
+  public static boolean readRecorderConfig(JsonObject config) {
+    RecorderConfig recorder = new RecorderConfig();
+
+    // path
+    JsonElement pathElement = config.get("path");
+    if (pathElement == null) {
+      parseError("recorder: could not read path");
+      return false;
+    }
+    recorder.path = pathElement.getAsString();
+
+    if (config.has("slots")) {
+      recorder.slots = config.get("slots").getAsInt();
+    }
+    if (config.has("thumbnail width")) {
+      recorder.thumbnailWidth = config.get("thumbnail width").getAsInt();
+    }
+    if (config.has("thumbnail interval")) {
+      recorder.thumbnailInterval = Math.max(1, config.get("thumbnail interval").getAsInt());
+    }
+    if (config.has("thumbnail quality")) {
+      recorder.thumbnailQuality = config.get("thumbnail quality").getAsInt();
+    }
+    if (config.has("thumbnail max bytes")) {
+      recorder.thumbnailMaxBytes = config.get("thumbnail max bytes").getAsInt();
+    }
+    if (recorder.slots < 1 || recorder.thumbnailWidth < 0 || recorder.thumbnailMaxBytes < 0) {
+      parseError("recorder: slots must be positive, thumbnail width and max bytes not negative");
+      return false;
+    }
+
+    recorderConfig = recorder;
+    return true;
+  }
+
+  /**
+   * Read flight recorder configuration.
+   */
+  public static boolean readFlightRecorderConfig(JsonObject config) {
+    FlightRecorderConfig recorder = new FlightRecorderConfig();
+
+    if (config.has("settings")) {
+      recorder.settings = config.get("settings").getAsString();
+    }
+    if (config.has("max age")) {
+      recorder.maxAgeSeconds = config.get("max age").getAsInt();
+    }
+    if (config.has("max size")) {
+      recorder.maxSizeMegabytes = config.get("max size").getAsInt();
+    }
+    if (config.has("slow frame ms")) {
+      recorder.slowFrameMillis = config.get("slow frame ms").getAsInt();
+    }
+    if (config.has("dump dir")) {
+      recorder.dumpDirectory = config.get("dump dir").getAsString();
+    }
+
+    flightRecorderConfig = recorder;
+    return true;
+  }
+
+  /**
+   * Read note occupancy grid configuration.
+   */
+  public static boolean readOccupancyConfig(JsonObject config) {
+    OccupancyConfig occupancy = new OccupancyConfig();
+
+    if (config.has("cell size")) {
+      occupancy.cellSize = config.get("cell size").getAsDouble();
+    }
+    if (config.has("forward")) {
+      occupancy.forward = config.get("forward").getAsDouble();
+    }
+    if (config.has("width")) {
+      occupancy.width = config.get("width").getAsDouble();
+    }
+    if (config.has("half life")) {
+      occupancy.halfLife = config.get("half life").getAsDouble();
+    }
+    if (config.has("hit weight")) {
+      occupancy.hitWeight = config.get("hit weight").getAsDouble();
+    }
+    if (config.has("min confidence")) {
+      occupancy.minConfidence = config.get("min confidence").getAsDouble();
+    }
+    if (config.has("top")) {
+      occupancy.top = config.get("top").getAsInt();
+    }
+    if (occupancy.cellSize <= 0 || occupancy.forward <= 0 || occupancy.width <= 0 || occupancy.halfLife <= 0
+        || occupancy.top < 1) {
+      parseError("occupancy grid sizes, half life and top must be positive");
+      return false;
+    }
+
+    occupancyConfig = occupancy;
+    return true;
+  }
+
+  /**
+   * Read AprilTag detector configuration.
+   */
+  public static boolean readAprilTagConfig(JsonObject config) {
+    AprilTagConfig tags = new AprilTagConfig();
+
+    if (config.has("family")) {
+      tags.family = config.get("family").getAsString();
+    }
+    if (config.has("decimation")) {
+      tags.decimation = config.get("decimation").getAsFloat();
+    }
+    if (config.has("threads")) {
+      tags.threads = config.get("threads").getAsInt();
+    }
+    if (config.has("max hamming")) {
+      tags.maxHammingDistance = config.get("max hamming").getAsInt();
+    }
+    if (config.has("tag size")) {
+      tags.tagSize = config.get("tag size").getAsDouble();
+    }
+    if (config.has("roi margin")) {
+      tags.roiMargin = config.get("roi margin").getAsDouble();
+    }
+    if (config.has("full search interval")) {
+      tags.fullSearchInterval = config.get("full search interval").getAsInt();
+    }
+
+    aprilTagConfig = tags;
+    return true;
+  }
+
+  /**
+   * Read single pipeline configuration.
+   */
+  public static boolean readPipelineConfig(JsonObject config) {
+    PipelineConfig pipeline = new PipelineConfig();
+
+    // name
+    JsonElement nameElement = config.get("name");
+    if (nameElement == null) {
+      parseError("could not read pipeline name");
+      return false;
+    }
+    pipeline.name = nameElement.getAsString();
+
+    // type
+    JsonElement typeElement = config.get("type");
+    if (typeElement == null) {
+      parseError("pipeline '" + pipeline.name + "': could not read type");
+      return false;
+    }
+    pipeline.type = typeElement.getAsString();
+
+    if (config.has("camera")) {
+      pipeline.camera = config.get("camera").getAsInt();
+    }
+    if (config.has("rate")) {
+      pipeline.rate = config.get("rate").getAsDouble();
+    }
+    if (config.has("priority")) {
+      pipeline.priority = config.get("priority").getAsInt();
+    }
+
+    // mask stage backends
+    try {
+      if (config.has("threshold")) {
+        pipeline.threshold = MaskBackend.parse(config.get("threshold").getAsString());
+      }
+      if (config.has("morphology")) {
+        pipeline.morphology = MaskBackend.parse(config.get("morphology").getAsString());
+      }
+    } catch (IllegalArgumentException ex) {
+      parseError("pipeline '" + pipeline.name + "': unknown backend, expected opencv, vector, bitpacked or separable");
+      return false;
+    }
+    if (pipeline.threshold.morphologyOnly()) {
+      parseError("pipeline '" + pipeline.name + "': " + pipeline.threshold.name().toLowerCase()
+          + " is only a morphology backend");
+      return false;
+    }
+
+    // co-process export
+    if (config.has("shared memory")) {
+      pipeline.sharedMemory = config.get("shared memory").getAsString();
+    }
+
+    pipelineConfigs.add(pipeline);
+    return true;
+  }
+
   /**
    * Read configuration file.
    */
@@ -448,6 +856,98 @@ public final class Main {
       }
     }
 
+    // match recorder (optional)
+    if (obj.has("recorder")) {
+      if (!readRecorderConfig(obj.get("recorder").getAsJsonObject())) {
+        return false;
+      }
+    }
+
+    // flight recorder (optional)
+    if (obj.has("flight recorder")) {
+      if (!readFlightRecorderConfig(obj.get("flight recorder").getAsJsonObject())) {
+        return false;
+      }
+    }
+
+    // apriltags (optional)
+    if (obj.has("apriltag")) {
+      if (!readAprilTagConfig(obj.get("apriltag").getAsJsonObject())) {
+        return false;
+      }
+    }
+
+    // pipelines (optional), note detection on the first camera when not given
+    if (obj.has("pipelines")) {
+      for (JsonElement pipeline : obj.get("pipelines").getAsJsonArray()) {
+        if (!readPipelineConfig(pipeline.getAsJsonObject())) {
+          return false;
+        }
+      }
+    } else {
+      PipelineConfig notes = new PipelineConfig();
+      notes.name = "notes";
+      notes.type = "notes";
+      notes.priority = 10;
+      pipelineConfigs.add(notes);
+      if (aprilTagConfig != null) {
+        PipelineConfig tags = new PipelineConfig();
+        tags.name = "apriltags";
+        tags.type = "apriltag";
+        tags.priority = 5;
+        pipelineConfigs.add(tags);
+      }
+    }
+
+    // scheduler (optional)
+    if (obj.has("scheduler")) {
+      JsonObject schedulerConfig = obj.get("scheduler").getAsJsonObject();
+      if (schedulerConfig.has("workers")) {
+        schedulerWorkers = schedulerConfig.get("workers").getAsInt();
+      }
+    }
+
+    // occupancy grid (optional)
+    if (obj.has("occupancy")) {
+      if (!readOccupancyConfig(obj.get("occupancy").getAsJsonObject())) {
+        return false;
+      }
+    }
+
+    // fusion (optional)
+    if (obj.has("fusion")) {
+      JsonObject fusion = obj.get("fusion").getAsJsonObject();
+      fusionConfig = new FusionConfig();
+      if (fusion.has("merge distance")) {
+        fusionConfig.mergeDistance = fusion.get("merge distance").getAsDouble();
+      }
+      if (fusion.has("max skew ms")) {
+        fusionConfig.maxSkewMillis = fusion.get("max skew ms").getAsLong();
+      }
+    }
+
+    // camera supervisor (optional)
+    if (obj.has("camera supervisor")) {
+      JsonObject cameraSupervisor = obj.get("camera supervisor").getAsJsonObject();
+      if (cameraSupervisor.has("stall ms")) {
+        supervisorConfig.stallMillis = cameraSupervisor.get("stall ms").getAsLong();
+      }
+      if (cameraSupervisor.has("retry ms")) {
+        supervisorConfig.retryMillis = cameraSupervisor.get("retry ms").getAsLong();
+      }
+    }
+
+    // robot state (optional)
+    if (obj.has("robot state")) {
+      JsonObject stateConfig = obj.get("robot state").getAsJsonObject();
+      if (stateConfig.has("disabled rate")) {
+        robotStateConfig.disabledRate = stateConfig.get("disabled rate").getAsDouble();
+      }
+      if (stateConfig.has("driver feed when disabled")) {
+        robotStateConfig.driverFeedWhenDisabled = stateConfig.get("driver feed when disabled").getAsBoolean();
+      }
+    }
+
     return true;
   }
 
@@ -456,21 +956,110 @@ public final class Main {
    */
   public static VideoSource startCamera(CameraConfig config) {
     System.out.println("Starting camera '" + config.name + "' on " + config.path);
-    UsbCamera camera = new UsbCamera(config.name, config.path);
+    UsbCamera camera = openCamera(config);
     MjpegServer server = CameraServer.startAutomaticCapture(camera);
 
+    if (config.streamConfig != null) {
+      Gson gson = new GsonBuilder().create();
+      server.setConfigJson(gson.toJson(config.streamConfig));
+    }
+    cameraServers.add(server);
+
+    return camera;
+  }
+
+  /**
+   * Open a camera's device and apply its configuration.
+   */
+  public static UsbCamera openCamera(CameraConfig config) {
+    UsbCamera camera = new UsbCamera(config.name, config.path);
+
     Gson gson = new GsonBuilder().create();
 
     camera.setConfigJson(gson.toJson(config.config));
     camera.setConnectionStrategy(VideoSource.ConnectionStrategy.kKeepOpen);
-
-    if (config.streamConfig != null) {
-      server.setConfigJson(gson.toJson(config.streamConfig));
+    if (config.lowLatency) {
+      applyLowLatency(camera, config);
     }
 
     return camera;
   }
 
+  /**
+   * Close a camera and open its device again by path with its configuration. Runs on the camera
+   * supervisor's thread.
+   *
+   * @return whether the device is there to open
+   */
+  public static boolean reopenCamera(int index, CameraFrameSource frameSource) {
+    CameraConfig config = cameraConfigs.get(index);
+    if (!Files.exists(Paths.get(config.path))) {
+      return false;
+    }
+    replaceCamera(index, () -> openCamera(config), frameSource);
+    return true;
+  }
+
+  /**
+   * Close camera index and put the one open returns in its place, then point its stream, any
+   * switched streams showing it and its frame source at the new one. All under cameraLock, so the
+   * disconnect listener and the switched camera listeners never see a half swapped camera.
+   *
+   * @return the new camera
+   */
+  public static VideoSource replaceCamera(int index, Supplier<VideoSource> open,
+      CameraFrameSource frameSource) {
+    synchronized (cameraLock) {
+      // close first, the old handle may still hold the device
+      VideoSource old = cameras.get(index);
+      int oldHandle = old.getHandle();
+      CameraServer.removeCamera(old.getName());
+      old.close();
+
+      VideoSource camera = open.get();
+      cameras.set(index, camera);
+      CameraServer.addCamera(camera);
+      frameSource.setCamera(camera);
+      cameraServers.get(index).setSource(camera);
+      for (MjpegServer server : switchedServers) {
+        if (server.getSource().getHandle() == oldHandle) {
+          server.setSource(camera);
+        }
+      }
+      return camera;
+    }
+  }
+
+  /**
+   * Short frame intervals and capture times: the highest frame rate the camera offers at the
+   * configured resolution and pixel format, a fixed exposure if one is configured, and never let
+   * auto exposure stretch the frame interval in low light. A shorter interval means a frame spends
+   * less time in the driver before cscore takes it and less time waiting for the grab. cscore keeps
+   * these and sets them again whenever the camera reconnects.
+   */
+  public static void applyLowLatency(UsbCamera camera, CameraConfig config) {
+    VideoMode mode = camera.getVideoMode();
+    VideoMode fastest = mode;
+    for (VideoMode candidate : camera.enumerateVideoModes()) {
+      if (candidate.pixelFormat == mode.pixelFormat && candidate.width == mode.width
+          && candidate.height == mode.height && candidate.fps > fastest.fps) {
+        fastest = candidate;
+      }
+    }
+    if (fastest != mode) {
+      camera.setVideoMode(fastest);
+    }
+    if (config.lowLatencyExposure >= 0) {
+      camera.setExposureManual(config.lowLatencyExposure);
+    }
+    // the UVC driver's name for it, and the name newer kernels use
+    for (String name : new String[] {"exposure_auto_priority", "exposure_dynamic_framerate"}) {
+      camera.getProperty(name).set(0);
+    }
+    System.out.println("Camera '" + config.name + "' in low latency mode, " + fastest.fps + " fps"
+        + (config.lowLatencyExposure >= 0 ? ", exposure " + config.lowLatencyExposure : ""));
+  }
+
   /**
    * Start running the switched camera.
    */
@@ -483,7 +1072,10 @@ public final class Main {
         inst.getTopic(config.key),
         EnumSet.of(NetworkTableEvent.Kind.kImmediate, NetworkTableEvent.Kind.kValueAll),
         event -> {
-          if (event.valueData != null) {
+          if (event.valueData == null) {
+            return;
+          }
+          synchronized (cameraLock) {
             if (event.valueData.value.isInteger()) {
               int i = (int) event.valueData.value.getInteger();
               if (i >= 0 && i < cameras.size()) {
@@ -0,0 +1,63 @@
+import java.util.Locale;
+
+import org.opencv.core.Scalar;
+
+/**
+ * Which implementation a pipeline uses for its threshold and morphology stages.
+ *
+ * <p>Chosen per pipeline in frc.json ("threshold" and "morphology"), so each platform can use
+ * whichever is faster on it; {@link MaskBackendBenchmark} compares them.
+ */
+public enum MaskBackend {
+  /** The OpenCV calls generated by GRIP. */
+  OPENCV,
+  /** Pure Java on the Vector API, see {@link VectorMaskOps}. */
+  VECTOR,
+  /** Morphology only: masks packed 64 pixels to a long, see {@link BitMask}. */
+  BITPACKED,
+  /** Morphology only: iterations folded into one rectangle, see {@link SeparableMorphology}. */
+  SEPARABLE;
+
+  /**
+   * Parse a backend name as written in frc.json, case insensitive.
+   *
+   * @throws IllegalArgumentException if the name is not a backend
+   */
+  public static MaskBackend parse(String name) {
+    return valueOf(name.toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Whether a backend only implements erode and dilate, not the threshold.
+   */
+  public boolean morphologyOnly() {
+    return this == BITPACKED || this == SEPARABLE;
+  }
+
+  /**
+   * Whether the Java erode and dilate can handle a constant border value: OpenCV's default, or
+   * one that saturates to 0 or 255.
+   */
+  public static boolean supportsBorder(Scalar borderValue) {
+    int border = borderPixel(borderValue);
+    return border == 0 || border == 255 || border == -1;
+  }
+
+  /**
+   * The 8-bit value of border pixels, or -1 for OpenCV's default (pixels outside are ignored).
+   * GRIP's Scalar(-1) saturates to 0.
+   */
+  public static int borderPixel(Scalar borderValue) {
+    if (borderValue.val[0] >= Double.MAX_VALUE) {
+      return -1;
+    }
+    return (int) Math.max(0, Math.min(255, Math.rint(borderValue.val[0])));
+  }
+
+  /**
+   * Whether the JVM was started with the Vector API module (--add-modules jdk.incubator.vector).
+   */
+  public static boolean vectorApiAvailable() {
+    return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+  }
+}
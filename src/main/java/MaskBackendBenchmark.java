@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.incubator.vector.ByteVector;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Compares the OpenCV, Vector API, bit-packed and separable implementations of the note
+ * pipeline's mask stages, so each platform can be configured with whichever is faster on it.
+ *
+ * <pre>
+ *   java --add-modules jdk.incubator.vector -cp java-multiCameraServer-all.jar MaskBackendBenchmark [frame dir] [width height]
+ * </pre>
+ * Without a frame directory it uses a synthetic frame with a note on noise. Run it natively on
+ * the Pi for aarch64 numbers, or on a desktop under qemu-aarch64 with an aarch64 JDK and OpenCV
+ * (emulated timings are only good for comparing the two backends with each other).
+ *
+ * <p>Each case is warmed up, then timed over several iterations like a JMH average-time run, and
+ * printed as mean and standard deviation per operation. Before timing, both backends are run on
+ * the same input and the number of mask pixels they disagree on is printed; it should be 0.
+ */
+public final class MaskBackendBenchmark {
+  private static final int kWarmupIterations = 5;
+  private static final int kIterations = 10;
+  private static final long kIterationNanos = 1000000000L;
+
+  // the note pipeline's steps
+  private static final double[] kHue = {8.093525179856115, 29.999999999999993};
+  private static final double[] kSaturation = {227.02338129496403, 255.0};
+  private static final double[] kLuminance = {114.65827338129496, 205.6313131313131};
+  private static final int kErodeIterations = 1;
+  private static final int kDilateIterations = 3;
+  private static final Scalar kBorder = new Scalar(-1);
+
+  static {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  private interface Operation {
+    void run();
+  }
+
+  private MaskBackendBenchmark() {
+  }
+
+  /*** Benchmark ***/
+  public static void main(String... args) throws IOException {
+    if (!MaskBackend.vectorApiAvailable()) {
+      System.err.println("Start java with --add-modules jdk.incubator.vector");
+      System.exit(2);
+    }
+
+    List<Mat> frames = new ArrayList<>();
+    if (args.length == 1 || args.length == 3) {
+      FrameReplay replay = new FrameReplay(args[0]);
+      for (int i = 0; i < replay.size(); i++) {
+        Mat frame = new Mat();
+        replay.next(frame);
+        frames.add(frame);
+      }
+      replay.close();
+    } else {
+      int width = args.length >= 2 ? Integer.parseInt(args[args.length - 2]) : Main.kCameraXResolution;
+      int height = args.length >= 2 ? Integer.parseInt(args[args.length - 1]) : width * 3 / 4;
+      frames.add(syntheticFrame(width, height));
+    }
+    if (args.length == 3) {
+      for (Mat frame : frames) {
+        Imgproc.resize(frame, frame, new Size(Integer.parseInt(args[1]), Integer.parseInt(args[2])));
+      }
+    }
+
+    Mat first = frames.get(0);
+    System.out.println("os.arch " + System.getProperty("os.arch") + ", java " + System.getProperty("java.version")
+        + ", " + frames.size() + " frame(s) of " + first.cols() + "x" + first.rows()
+        + ", " + ByteVector.SPECIES_PREFERRED);
+
+    VectorMaskOps vector = new VectorMaskOps();
+    BitMaskMorphology bitMask = new BitMaskMorphology();
+    SeparableMorphology separable = new SeparableMorphology();
+    SeparableMorphology.Element square = SeparableMorphology.Element.rect(3, 3);
+    Mat hls = new Mat();
+    Mat opencvMask = new Mat();
+    Mat vectorMask = new Mat();
+    Mat opencvOut = new Mat();
+    Mat vectorOut = new Mat();
+    Mat kernel = new Mat();
+    Point anchor = new Point(-1, -1);
+    int[] index = new int[1];
+
+    // parity on every frame before timing anything
+    long thresholdDiff = 0;
+    long erodeDiff = 0;
+    long dilateDiff = 0;
+    long bitMaskDiff = 0;
+    long separableDiff = 0;
+    for (Mat frame : frames) {
+      Imgproc.cvtColor(frame, hls, Imgproc.COLOR_BGR2HLS);
+      Core.inRange(hls, new Scalar(kHue[0], kLuminance[0], kSaturation[0]),
+          new Scalar(kHue[1], kLuminance[1], kSaturation[1]), opencvMask);
+      vector.hlsThreshold(frame, kHue, kSaturation, kLuminance, vectorMask);
+      thresholdDiff += differences(opencvMask, vectorMask);
+
+      Imgproc.erode(opencvMask, opencvOut, kernel, anchor, kErodeIterations, Core.BORDER_CONSTANT, kBorder);
+      vector.erode(opencvMask, kErodeIterations, kBorder, vectorOut);
+      erodeDiff += differences(opencvOut, vectorOut);
+      bitMask.erode(opencvMask, kErodeIterations, kBorder, vectorOut);
+      bitMaskDiff += differences(opencvOut, vectorOut);
+      separable.erode(opencvMask, square, kErodeIterations, kBorder, vectorOut);
+      separableDiff += differences(opencvOut, vectorOut);
+
+      Imgproc.dilate(opencvMask, opencvOut, kernel, anchor, kDilateIterations, Core.BORDER_CONSTANT, kBorder);
+      vector.dilate(opencvMask, kDilateIterations, kBorder, vectorOut);
+      dilateDiff += differences(opencvOut, vectorOut);
+      bitMask.dilate(opencvMask, kDilateIterations, kBorder, vectorOut);
+      bitMaskDiff += differences(opencvOut, vectorOut);
+      separable.dilate(opencvMask, square, kDilateIterations, kBorder, vectorOut);
+      separableDiff += differences(opencvOut, vectorOut);
+    }
+    System.out.println("mismatched pixels: threshold " + thresholdDiff + ", erode " + erodeDiff + ", dilate " + dilateDiff
+        + ", bitpacked " + bitMaskDiff + ", separable " + separableDiff);
+
+    Mat mask = opencvMask;
+    measure("threshold  opencv", () -> {
+      Mat frame = frames.get(index[0]++ % frames.size());
+      Imgproc.cvtColor(frame, hls, Imgproc.COLOR_BGR2HLS);
+      Core.inRange(hls, new Scalar(kHue[0], kLuminance[0], kSaturation[0]),
+          new Scalar(kHue[1], kLuminance[1], kSaturation[1]), opencvOut);
+    });
+    measure("threshold  vector", () ->
+        vector.hlsThreshold(frames.get(index[0]++ % frames.size()), kHue, kSaturation, kLuminance, vectorOut));
+    measure("erode x" + kErodeIterations + "   opencv", () ->
+        Imgproc.erode(mask, opencvOut, kernel, anchor, kErodeIterations, Core.BORDER_CONSTANT, kBorder));
+    measure("erode x" + kErodeIterations + "   vector", () -> vector.erode(mask, kErodeIterations, kBorder, vectorOut));
+    measure("erode x" + kErodeIterations + "   bitpacked", () -> bitMask.erode(mask, kErodeIterations, kBorder, vectorOut));
+    measure("dilate x" + kDilateIterations + "  opencv", () ->
+        Imgproc.dilate(mask, opencvOut, kernel, anchor, kDilateIterations, Core.BORDER_CONSTANT, kBorder));
+    measure("dilate x" + kDilateIterations + "  vector", () -> vector.dilate(mask, kDilateIterations, kBorder, vectorOut));
+    measure("dilate x" + kDilateIterations + "  bitpacked", () -> bitMask.dilate(mask, kDilateIterations, kBorder, vectorOut));
+    measure("dilate x" + kDilateIterations + "  separable", () ->
+        separable.dilate(mask, square, kDilateIterations, kBorder, vectorOut));
+    // the same dilate as a chain of one full frame pass per iteration
+    measure("dilate x" + kDilateIterations + "  chain", () -> {
+      Imgproc.dilate(mask, opencvOut, kernel, anchor, 1, Core.BORDER_CONSTANT, kBorder);
+      for (int i = 1; i < kDilateIterations; i++) {
+        Imgproc.dilate(opencvOut, opencvOut, kernel, anchor, 1, Core.BORDER_CONSTANT, kBorder);
+      }
+    });
+    System.out.println("separable: " + separable.passes() + " full frame passes where the chains take "
+        + separable.chainPasses());
+
+    MaskBackend[][] pipelineBackends = {
+      {MaskBackend.OPENCV, MaskBackend.OPENCV},
+      {MaskBackend.VECTOR, MaskBackend.VECTOR},
+      {MaskBackend.OPENCV, MaskBackend.BITPACKED},
+      {MaskBackend.VECTOR, MaskBackend.BITPACKED},
+      {MaskBackend.OPENCV, MaskBackend.SEPARABLE},
+      {MaskBackend.VECTOR, MaskBackend.SEPARABLE},
+    };
+    for (MaskBackend[] backends : pipelineBackends) {
+      NoteGripPipeline pipeline = new NoteGripPipeline();
+      pipeline.setBackends(backends[0], backends[1]);
+      measure("pipeline   " + backends[0].name().toLowerCase() + "/" + backends[1].name().toLowerCase(),
+          () -> pipeline.process(frames.get(index[0]++ % frames.size())));
+    }
+  }
+
+  /**
+   * Warm up, then time an operation over fixed length iterations and print the average time.
+   */
+  private static void measure(String name, Operation operation) {
+    double[] nanosPerOp = new double[kIterations];
+    for (int i = -kWarmupIterations; i < kIterations; i++) {
+      long start = System.nanoTime();
+      long end;
+      long ops = 0;
+      do {
+        operation.run();
+        ops++;
+        end = System.nanoTime();
+      } while (end - start < kIterationNanos);
+      if (i >= 0) {
+        nanosPerOp[i] = (end - start) / (double) ops;
+      }
+    }
+
+    double mean = 0;
+    for (double value : nanosPerOp) {
+      mean += value / kIterations;
+    }
+    double variance = 0;
+    for (double value : nanosPerOp) {
+      variance += (value - mean) * (value - mean) / (kIterations - 1);
+    }
+    System.out.println(String.format("%-20s %10.1f us/op  +- %.1f", name, mean / 1000, Math.sqrt(variance) / 1000));
+  }
+
+  private static long differences(Mat a, Mat b) {
+    Mat diff = new Mat();
+    Core.compare(a, b, diff, Core.CMP_NE);
+    long count = Core.countNonZero(diff);
+    diff.release();
+    return count;
+  }
+
+  /**
+   * An orange note on a noisy background, so thresholding has both matches and near misses.
+   */
+  private static Mat syntheticFrame(int width, int height) {
+    Mat frame = new Mat(height, width, CvType.CV_8UC3);
+    Core.randu(frame, 0, 256);
+    Point center = new Point(width * 0.55, height * 0.7);
+    Size axes = new Size(width * 0.15, height * 0.06);
+    // note color in HLS (hue 18, lum 160, sat 240), converted to BGR
+    Mat color = new Mat(1, 1, CvType.CV_8UC3, new Scalar(18, 160, 240));
+    Imgproc.cvtColor(color, color, Imgproc.COLOR_HLS2BGR);
+    double[] bgr = color.get(0, 0);
+    color.release();
+    Imgproc.ellipse(frame, center, axes, 0, 0, 360, new Scalar(bgr), 12);
+    return frame;
+  }
+}
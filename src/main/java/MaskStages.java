@@ -0,0 +1,148 @@
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The threshold, erode and dilate steps of the GRIP pipelines, run on whichever
+ * {@link MaskBackend} the pipeline is set to. Each pipeline owns one, so the Java backends'
+ * scratch buffers are never shared between threads.
+ *
+ * <p>A step falls back to the OpenCV call GRIP generated whenever the chosen backend cannot do
+ * it exactly: a kernel, anchor or border type it does not implement, or a border value other
+ * than OpenCV's default, 0 or 255.
+ */
+public final class MaskStages {
+  private MaskBackend thresholdBackend = MaskBackend.OPENCV;
+  private MaskBackend morphologyBackend = MaskBackend.OPENCV;
+  private VectorMaskOps vectorOps;
+  private BitMaskMorphology bitMaskOps;
+  private SeparableMorphology separableOps;
+
+  /**
+   * Choose the implementation of the threshold and morphology steps. Falls back to OpenCV when
+   * the Vector API is asked for but the JVM was started without it.
+   *
+   * @param threshold the backend for the threshold step, OPENCV or VECTOR
+   * @param morphology the backend for the erode and dilate steps
+   */
+  public void setBackends(MaskBackend threshold, MaskBackend morphology) {
+    if (threshold.morphologyOnly()) {
+      throw new IllegalArgumentException(threshold.name().toLowerCase() + " is a morphology backend only");
+    }
+    if ((threshold == MaskBackend.VECTOR || morphology == MaskBackend.VECTOR)
+        && !MaskBackend.vectorApiAvailable()) {
+      System.err.println("Vector API not available (start java with --add-modules jdk.incubator.vector), using OpenCV");
+      threshold = MaskBackend.OPENCV;
+      morphology = morphology == MaskBackend.VECTOR ? MaskBackend.OPENCV : morphology;
+    }
+    if (vectorOps == null && (threshold == MaskBackend.VECTOR || morphology == MaskBackend.VECTOR)) {
+      vectorOps = new VectorMaskOps();
+    }
+    if (bitMaskOps == null && morphology == MaskBackend.BITPACKED) {
+      bitMaskOps = new BitMaskMorphology();
+    }
+    if (separableOps == null && morphology == MaskBackend.SEPARABLE) {
+      separableOps = new SeparableMorphology();
+    }
+    thresholdBackend = threshold;
+    morphologyBackend = morphology;
+  }
+
+  /**
+   * Keep the pixels of a BGR image whose hue, luminance and saturation are in range.
+   */
+  public void hlsThreshold(Mat input, double[] hue, double[] sat, double[] lum, Mat out) {
+    if (thresholdBackend == MaskBackend.VECTOR) {
+      vectorOps.hlsThreshold(input, hue, sat, lum, out);
+      return;
+    }
+    Imgproc.cvtColor(input, out, Imgproc.COLOR_BGR2HLS);
+    Core.inRange(out, new Scalar(hue[0], lum[0], sat[0]), new Scalar(hue[1], lum[1], sat[1]), out);
+  }
+
+  /**
+   * Keep the pixels of a BGR image whose hue, saturation and value are in range.
+   */
+  public void hsvThreshold(Mat input, double[] hue, double[] sat, double[] val, Mat out) {
+    if (thresholdBackend == MaskBackend.VECTOR) {
+      vectorOps.hsvThreshold(input, hue, sat, val, out);
+      return;
+    }
+    Imgproc.cvtColor(input, out, Imgproc.COLOR_BGR2HSV);
+    Core.inRange(out, new Scalar(hue[0], sat[0], val[0]), new Scalar(hue[1], sat[1], val[1]), out);
+  }
+
+  /**
+   * Erode as Imgproc.erode would.
+   */
+  public void erode(Mat src, Mat kernel, Point anchor, int iterations, int borderType, Scalar borderValue,
+      Mat dst) {
+    if (!morphology(true, src, kernel, anchor, iterations, borderType, borderValue, dst)) {
+      Imgproc.erode(src, dst, kernel, anchor, iterations, borderType, borderValue);
+    }
+  }
+
+  /**
+   * Dilate as Imgproc.dilate would.
+   */
+  public void dilate(Mat src, Mat kernel, Point anchor, int iterations, int borderType, Scalar borderValue,
+      Mat dst) {
+    if (!morphology(false, src, kernel, anchor, iterations, borderType, borderValue, dst)) {
+      Imgproc.dilate(src, dst, kernel, anchor, iterations, borderType, borderValue);
+    }
+  }
+
+  /**
+   * Run an erode or dilate on the Java morphology backend if it can do it exactly.
+   *
+   * @return whether it ran; if not the caller uses OpenCV
+   */
+  private boolean morphology(boolean erode, Mat src, Mat kernel, Point anchor, int iterations,
+      int borderType, Scalar borderValue, Mat dst) {
+    if (morphologyBackend == MaskBackend.OPENCV || borderType != Core.BORDER_CONSTANT
+        || !MaskBackend.supportsBorder(borderValue)) {
+      return false;
+    }
+    if (morphologyBackend == MaskBackend.SEPARABLE) {
+      SeparableMorphology.Element element = SeparableMorphology.Element.of(kernel, anchor);
+      if (element == null) {
+        return false;
+      }
+      if (erode) {
+        separableOps.erode(src, element, iterations, borderValue, dst);
+      } else {
+        separableOps.dilate(src, element, iterations, borderValue, dst);
+      }
+      return true;
+    }
+    // the vector and bit-packed backends only do the default 3x3 square
+    if (!kernel.empty() || anchor.x != -1 || anchor.y != -1) {
+      return false;
+    }
+    if (morphologyBackend == MaskBackend.VECTOR) {
+      if (erode) {
+        vectorOps.erode(src, iterations, borderValue, dst);
+      } else {
+        vectorOps.dilate(src, iterations, borderValue, dst);
+      }
+    } else {
+      if (erode) {
+        bitMaskOps.erode(src, iterations, borderValue, dst);
+      } else {
+        bitMaskOps.dilate(src, iterations, borderValue, dst);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Add the native memory held by the Java backends' scratch Mats to stats.
+   */
+  public void measureNativeMemory(NativeMats stats) {
+    if (vectorOps != null) {
+      vectorOps.measureNativeMemory(stats);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes a ring file written by {@link MatchRecorder} back into frames, oldest first.
+ *
+ * <p>Run as a program it prints the frames as CSV and, given a directory, writes the thumbnails
+ * out as numbered JPEGs that {@link FrameReplay} can play back through the pipelines:
+ * <pre>
+ *   java -cp java-multiCameraServer-all.jar MatchRecordReader match.pvr [thumbnail dir]
+ * </pre>
+ */
+public final class MatchRecordReader {
+
+  /**
+   * One decoded slot.
+   */
+  @SuppressWarnings("MemberName")
+  public static class Frame {
+    public long sequence;
+    public long wallClockMillis;
+    public Detection detection = new Detection();
+    public byte[] thumbnail;  // JPEG, null if this frame has none
+  }
+
+  private MatchRecordReader() {
+  }
+
+  /**
+   * Read every complete frame still in the ring, oldest first.
+   */
+  public static List<Frame> read(String path) throws IOException {
+    MappedByteBuffer buffer;
+    try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (buffer.getInt(MatchRecorder.kHeaderMagic) != MatchRecorder.kMagic) {
+      throw new IOException("[" + path + "] is not a match recording");
+    }
+    int version = buffer.getInt(MatchRecorder.kHeaderVersion);
+    if (version != MatchRecorder.kVersion) {
+      throw new IOException("[" + path + "] is recording version " + version + ", expected " + MatchRecorder.kVersion);
+    }
+    int slotSize = buffer.getInt(MatchRecorder.kHeaderSlotSize);
+    int slotCount = buffer.getInt(MatchRecorder.kHeaderSlotCount);
+    long framesWritten = buffer.getLong(MatchRecorder.kHeaderFramesWritten);
+
+    List<Frame> frames = new ArrayList<>();
+    for (long sequence = Math.max(1, framesWritten - slotCount + 1); sequence <= framesWritten; sequence++) {
+      int slot = MatchRecorder.kHeaderSize + (int) ((sequence - 1) % slotCount) * slotSize;
+
+      // a slot that does not carry its own sequence number was torn by a crash mid-write
+      if (buffer.getLong(slot + MatchRecorder.kSlotSequence) != sequence) {
+        continue;
+      }
+
+      Frame frame = new Frame();
+      frame.sequence = sequence;
+      frame.wallClockMillis = buffer.getLong(slot + MatchRecorder.kSlotWallClock);
+      Detection detection = frame.detection;
+      detection.captureTime = buffer.getLong(slot + MatchRecorder.kSlotCaptureTime);
+      detection.frameNumber = buffer.getLong(slot + MatchRecorder.kSlotFrameNumber);
+      detection.detected = buffer.getInt(slot + MatchRecorder.kSlotDetected) != 0;
+      detection.contourCount = buffer.getInt(slot + MatchRecorder.kSlotContourCount);
+      detection.centerX = buffer.getInt(slot + MatchRecorder.kSlotCenterX);
+      detection.centerY = buffer.getInt(slot + MatchRecorder.kSlotCenterY);
+      detection.width = buffer.getInt(slot + MatchRecorder.kSlotWidth);
+      detection.height = buffer.getInt(slot + MatchRecorder.kSlotHeight);
+      detection.angle = buffer.getDouble(slot + MatchRecorder.kSlotAngle);
+      detection.grabNanos = buffer.getLong(slot + MatchRecorder.kSlotGrabNanos);
+      detection.processNanos = buffer.getLong(slot + MatchRecorder.kSlotProcessNanos);
+      detection.selectNanos = buffer.getLong(slot + MatchRecorder.kSlotSelectNanos);
+      detection.publishNanos = buffer.getLong(slot + MatchRecorder.kSlotPublishNanos);
+
+      int thumbnailLength = buffer.getInt(slot + MatchRecorder.kSlotThumbnailLength);
+      if (thumbnailLength > 0 && thumbnailLength <= slotSize - MatchRecorder.kSlotThumbnail) {
+        frame.thumbnail = new byte[thumbnailLength];
+        buffer.get(slot + MatchRecorder.kSlotThumbnail, frame.thumbnail);
+      }
+      frames.add(frame);
+    }
+    return frames;
+  }
+
+  /*** Dump tool ***/
+  public static void main(String... args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: MatchRecordReader <recording> [thumbnail dir]");
+      System.exit(2);
+    }
+    Path thumbnailDir = null;
+    if (args.length > 1) {
+      thumbnailDir = Paths.get(args[1]);
+      Files.createDirectories(thumbnailDir);
+    }
+
+    List<Frame> frames = read(args[0]);
+    System.out.println("sequence,wallClockMillis,frameNumber,captureTime,detected,contours,"
+        + "centerX,centerY,width,height,angle,grabUs,processUs,selectUs,publishUs,thumbnail");
+    for (Frame frame : frames) {
+      Detection d = frame.detection;
+      String thumbnailName = "";
+      if (frame.thumbnail != null && thumbnailDir != null) {
+        thumbnailName = String.format("%08d.jpg", frame.sequence);
+        Files.write(thumbnailDir.resolve(thumbnailName), frame.thumbnail);
+      }
+      System.out.println(frame.sequence + "," + frame.wallClockMillis + "," + d.frameNumber + "," + d.captureTime
+          + "," + d.detected + "," + d.contourCount + "," + d.centerX + "," + d.centerY + "," + d.width
+          + "," + d.height + "," + String.format("%.2f", d.angle) + "," + d.grabNanos / 1000
+          + "," + d.processNanos / 1000 + "," + d.selectNanos / 1000 + "," + d.publishNanos / 1000
+          + "," + thumbnailName);
+    }
+    System.err.println(frames.size() + " frames decoded");
+  }
+}
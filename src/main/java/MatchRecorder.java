@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Records every frame's detection, stage timings and an optional JPEG thumbnail into a
+ * preallocated memory-mapped ring file.
+ *
+ * <p>The file is sized and touched once when the recorder is opened. After that, recording a
+ * frame only stores into the mapping: no write() calls and no locks, so the vision loop never
+ * waits on the SD card. The kernel flushes dirty pages in the background. There is a single
+ * writer (the vision thread); each slot's sequence number is written last so a reader can tell a
+ * complete slot from one that was being overwritten. See {@link MatchRecordReader}.
+ *
+ * <p>File layout, little endian:
+ * <pre>
+ *   header (64 bytes): magic, version, slot size, slot count, thumbnail max bytes, frames written
+ *   slots[slot count]: sequence, capture time, wall clock, detection, timings, thumbnail
+ * </pre>
+ */
+public final class MatchRecorder {
+  static final int kMagic = 0x50565243;  // "PVRC"
+  static final int kVersion = 1;
+  static final int kHeaderSize = 64;
+
+  // header offsets
+  static final int kHeaderMagic = 0;
+  static final int kHeaderVersion = 4;
+  static final int kHeaderSlotSize = 8;
+  static final int kHeaderSlotCount = 12;
+  static final int kHeaderThumbnailMaxBytes = 16;
+  static final int kHeaderFramesWritten = 24;
+
+  // slot offsets
+  static final int kSlotSequence = 0;
+  static final int kSlotCaptureTime = 8;
+  static final int kSlotWallClock = 16;
+  static final int kSlotFrameNumber = 24;
+  static final int kSlotDetected = 32;
+  static final int kSlotContourCount = 36;
+  static final int kSlotCenterX = 40;
+  static final int kSlotCenterY = 44;
+  static final int kSlotWidth = 48;
+  static final int kSlotHeight = 52;
+  static final int kSlotAngle = 56;
+  static final int kSlotGrabNanos = 64;
+  static final int kSlotProcessNanos = 72;
+  static final int kSlotSelectNanos = 80;
+  static final int kSlotPublishNanos = 88;
+  static final int kSlotThumbnailLength = 96;
+  static final int kSlotThumbnail = 100;
+
+  private final MappedByteBuffer buffer;
+  private final int slotSize;
+  private final int slotCount;
+  private final int thumbnailWidth;
+  private final int thumbnailInterval;
+  private final int thumbnailMaxBytes;
+  private long framesWritten;
+
+  // thumbnail scratch, reused every frame
+  private final Mat thumbnail = new Mat();
+  private final MatOfByte encoded = new MatOfByte();
+  private final MatOfInt encodeParams;
+  private final byte[] thumbnailBytes;
+
+  /**
+   * Create (or overwrite) the ring file and map it.
+   */
+  public MatchRecorder(Main.RecorderConfig config) throws IOException {
+    thumbnailWidth = config.thumbnailWidth;
+    thumbnailInterval = config.thumbnailInterval;
+    thumbnailMaxBytes = thumbnailWidth > 0 ? config.thumbnailMaxBytes : 0;
+    slotCount = config.slots;
+    // keep slots 8 byte aligned so the longs in them are too
+    slotSize = (kSlotThumbnail + thumbnailMaxBytes + 7) & ~7;
+    thumbnailBytes = new byte[thumbnailMaxBytes];
+    encodeParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, config.thumbnailQuality);
+
+    long fileSize = kHeaderSize + (long) slotSize * slotCount;
+    if (fileSize > Integer.MAX_VALUE) {
+      throw new IOException("recorder file would be " + fileSize + " bytes, reduce slots or thumbnail size");
+    }
+
+    try (RandomAccessFile file = new RandomAccessFile(config.path, "rw")) {
+      file.setLength(fileSize);
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    // Touch every page now so the first lap of the ring does not take page faults mid-match
+    for (int i = 0; i < fileSize; i += 8) {
+      buffer.putLong(i, 0);
+    }
+
+    buffer.putInt(kHeaderMagic, kMagic);
+    buffer.putInt(kHeaderVersion, kVersion);
+    buffer.putInt(kHeaderSlotSize, slotSize);
+    buffer.putInt(kHeaderSlotCount, slotCount);
+    buffer.putInt(kHeaderThumbnailMaxBytes, thumbnailMaxBytes);
+    buffer.putLong(kHeaderFramesWritten, 0);
+
+    System.out.println("Recording " + slotCount + " frames to " + config.path + " (" + fileSize / 1024 + " kB)");
+  }
+
+  /**
+   * Append one frame. Called from the vision thread only.
+   *
+   * @param detection the frame's detection and timings
+   * @param frame the camera frame, used for the thumbnail
+   */
+  public void record(Detection detection, Mat frame) {
+    int thumbnailLength = 0;
+    if (thumbnailMaxBytes > 0 && detection.frameNumber % thumbnailInterval == 0) {
+      thumbnailLength = encodeThumbnail(frame);
+    }
+
+    int slot = kHeaderSize + (int) (framesWritten % slotCount) * slotSize;
+
+    // invalidate the slot while it is being rewritten
+    buffer.putLong(slot + kSlotSequence, 0);
+
+    buffer.putLong(slot + kSlotCaptureTime, detection.captureTime);
+    buffer.putLong(slot + kSlotWallClock, System.currentTimeMillis());
+    buffer.putLong(slot + kSlotFrameNumber, detection.frameNumber);
+    buffer.putInt(slot + kSlotDetected, detection.detected ? 1 : 0);
+    buffer.putInt(slot + kSlotContourCount, detection.contourCount);
+    buffer.putInt(slot + kSlotCenterX, detection.centerX);
+    buffer.putInt(slot + kSlotCenterY, detection.centerY);
+    buffer.putInt(slot + kSlotWidth, detection.width);
+    buffer.putInt(slot + kSlotHeight, detection.height);
+    buffer.putDouble(slot + kSlotAngle, detection.angle);
+    buffer.putLong(slot + kSlotGrabNanos, detection.grabNanos);
+    buffer.putLong(slot + kSlotProcessNanos, detection.processNanos);
+    buffer.putLong(slot + kSlotSelectNanos, detection.selectNanos);
+    buffer.putLong(slot + kSlotPublishNanos, detection.publishNanos);
+    buffer.putInt(slot + kSlotThumbnailLength, thumbnailLength);
+    if (thumbnailLength > 0) {
+      buffer.put(slot + kSlotThumbnail, thumbnailBytes, 0, thumbnailLength);
+    }
+
+    framesWritten++;
+    buffer.putLong(slot + kSlotSequence, framesWritten);
+    buffer.putLong(kHeaderFramesWritten, framesWritten);
+  }
+
+  /**
+   * Downscale and JPEG encode the frame into thumbnailBytes.
+   *
+   * @return encoded length, or 0 if it did not fit in a slot
+   */
+  private int encodeThumbnail(Mat frame) {
+    if (frame.empty()) {
+      return 0;
+    }
+    int height = Math.max(1, frame.rows() * thumbnailWidth / frame.cols());
+    Imgproc.resize(frame, thumbnail, new Size(thumbnailWidth, height), 0, 0, Imgproc.INTER_AREA);
+    if (!Imgcodecs.imencode(".jpg", thumbnail, encoded, encodeParams)) {
+      return 0;
+    }
+    int length = (int) encoded.total();
+    if (length > thumbnailMaxBytes) {
+      return 0;
+    }
+    encoded.get(0, 0, thumbnailBytes);
+    return length;
+  }
+}
@@ -0,0 +1,78 @@
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+/**
+ * Book-keeping for native OpenCV memory.
+ *
+ * <p>Mats hold their pixel data outside the Java heap, so the GC has no idea how big they are and
+ * only frees them when it gets around to finalizing the Java wrapper. Pipelines release their
+ * per-frame Mats explicitly through {@link #releaseAll} and report what they still hold through an
+ * instance of this class, which is published as the live native Mat count and bytes.
+ */
+public final class NativeMats {
+  private long count;
+  private long bytes;
+
+  /**
+   * Release every Mat in the list and empty it.
+   */
+  public static void releaseAll(List<? extends Mat> mats) {
+    for (Mat mat : mats) {
+      mat.release();
+    }
+    mats.clear();
+  }
+
+  /**
+   * Release each Mat given. Unlike {@link #releaseAll} nothing is cleared, so this suits Mats
+   * that are not held in a list of their own.
+   */
+  public static void release(Mat... mats) {
+    for (Mat mat : mats) {
+      mat.release();
+    }
+  }
+
+  /**
+   * Size in bytes of the pixel data held by a Mat.
+   */
+  public static long bytesOf(Mat mat) {
+    return mat.empty() ? 0 : mat.total() * mat.elemSize();
+  }
+
+  /**
+   * Clear the totals before measuring a new frame.
+   */
+  public void reset() {
+    count = 0;
+    bytes = 0;
+  }
+
+  /**
+   * Add a Mat to the totals. Empty Mats hold no native buffer and are not counted.
+   */
+  public void add(Mat mat) {
+    if (mat != null && !mat.empty()) {
+      count++;
+      bytes += bytesOf(mat);
+    }
+  }
+
+  /**
+   * Add every Mat in the list to the totals.
+   */
+  public void addAll(List<? extends Mat> mats) {
+    for (Mat mat : mats) {
+      add(mat);
+    }
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public long bytes() {
+    return bytes;
+  }
+}
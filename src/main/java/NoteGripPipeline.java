@@ -23,12 +23,32 @@ public class NoteGripPipeline implements VisionPipeline {
 	private Mat cvDilateOutput = new Mat();
 	private ArrayList<MatOfPoint> findContoursOutput = new ArrayList<MatOfPoint>();
 	private ArrayList<MatOfPoint> filterContoursOutput = new ArrayList<MatOfPoint>();
+	// The same contours as flat arrays, see ContourSet
+	private final ContourSet findContoursSet = new ContourSet();
+	private final ContourSet filterContoursSet = new ContourSet();
 	private Mat maskOutput = new Mat();
 
+	// Scratch Mats reused every frame so native buffers are not left for the GC to finalize
+	private final Mat morphologyKernel = new Mat();
+	private final Mat hierarchy = new Mat();
+
+	// Which implementation runs the threshold and morphology steps, see setBackends
+	private final MaskStages maskStages = new MaskStages();
+
 	static {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 	}
 
+	/**
+	 * Chooses the implementation of the threshold and morphology steps. Falls back to OpenCV when
+	 * the Vector API is asked for but the JVM was started without it.
+	 * @param threshold the backend for the threshold step, OPENCV or VECTOR.
+	 * @param morphology the backend for the erode and dilate steps.
+	 */
+	public void setBackends(MaskBackend threshold, MaskBackend morphology) {
+		maskStages.setBackends(threshold, morphology);
+	}
+
 	/**
 	 * This is the primary method that runs the entire pipeline and updates the outputs.
 	 */
@@ -42,7 +62,7 @@ public class NoteGripPipeline implements VisionPipeline {
 
 		// Step CV_erode0:
 		Mat cvErodeSrc = hslThresholdOutput;
-		Mat cvErodeKernel = new Mat();
+		Mat cvErodeKernel = morphologyKernel;
 		Point cvErodeAnchor = new Point(-1, -1);
 		double cvErodeIterations = 1.0;
 		int cvErodeBordertype = Core.BORDER_CONSTANT;
@@ -51,7 +71,7 @@ public class NoteGripPipeline implements VisionPipeline {
 
 		// Step CV_dilate0:
 		Mat cvDilateSrc = cvErodeOutput;
-		Mat cvDilateKernel = new Mat();
+		Mat cvDilateKernel = morphologyKernel;
 		Point cvDilateAnchor = new Point(-1, -1);
 		double cvDilateIterations = 3.0;
 		int cvDilateBordertype = Core.BORDER_CONSTANT;
@@ -62,9 +82,10 @@ public class NoteGripPipeline implements VisionPipeline {
 		Mat findContoursInput = cvDilateOutput;
 		boolean findContoursExternalOnly = true;
 		findContours(findContoursInput, findContoursExternalOnly, findContoursOutput);
+		findContoursSet.read(findContoursOutput);
 
 		// Step Filter_Contours0:
-		ArrayList<MatOfPoint> filterContoursContours = findContoursOutput;
+		ContourSet filterContoursContours = findContoursSet;
 		double filterContoursMinArea = 200.0;
 		double filterContoursMinPerimeter = 0.0;
 		double filterContoursMinWidth = 0.0;
@@ -76,7 +97,7 @@ public class NoteGripPipeline implements VisionPipeline {
 		double filterContoursMinVertices = 0.0;
 		double filterContoursMinRatio = 0.0;
 		double filterContoursMaxRatio = 1000.0;
-		filterContours(filterContoursContours, filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth, filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursSolidity, filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio, filterContoursMaxRatio, filterContoursOutput);
+		filterContours(filterContoursContours, filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth, filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursSolidity, filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio, filterContoursMaxRatio, filterContoursSet, filterContoursOutput);
 
 		// Step Mask0:
 		Mat maskInput = source0;
@@ -125,6 +146,14 @@ public class NoteGripPipeline implements VisionPipeline {
 		return filterContoursOutput;
 	}
 
+	/**
+	 * The output of Filter_Contours as flat arrays, for selecting targets without JNI calls.
+	 * @return ContourSet output from Filter_Contours, reused every frame.
+	 */
+	public ContourSet filteredContours() {
+		return filterContoursSet;
+	}
+
 	/**
 	 * This method is a generated getter for the output of a Mask.
 	 * @return Mat output from Mask.
@@ -133,6 +162,20 @@ public class NoteGripPipeline implements VisionPipeline {
 		return maskOutput;
 	}
 
+	/**
+	 * Adds every native Mat currently owned by this pipeline to the given stats.
+	 * @param stats the accumulator to add to.
+	 */
+	public void measureNativeMemory(NativeMats stats) {
+		stats.add(hslThresholdOutput);
+		stats.add(cvErodeOutput);
+		stats.add(cvDilateOutput);
+		stats.addAll(findContoursOutput);
+		stats.add(maskOutput);
+		stats.add(hierarchy);
+		maskStages.measureNativeMemory(stats);
+	}
+
 
 	/**
 	 * Segment an image based on hue, saturation, and luminance ranges.
@@ -145,9 +188,7 @@ public class NoteGripPipeline implements VisionPipeline {
 	 */
 	private void hslThreshold(Mat input, double[] hue, double[] sat, double[] lum,
 		Mat out) {
-		Imgproc.cvtColor(input, out, Imgproc.COLOR_BGR2HLS);
-		Core.inRange(out, new Scalar(hue[0], lum[0], sat[0]),
-			new Scalar(hue[1], lum[1], sat[1]), out);
+		maskStages.hlsThreshold(input, hue, sat, lum, out);
 	}
 
 	/**
@@ -171,7 +212,7 @@ public class NoteGripPipeline implements VisionPipeline {
 		if (borderValue == null) {
 			borderValue = new Scalar(-1);
 		}
-		Imgproc.erode(src, dst, kernel, anchor, (int)iterations, borderType, borderValue);
+		maskStages.erode(src, kernel, anchor, (int)iterations, borderType, borderValue, dst);
 	}
 
 	/**
@@ -195,7 +236,7 @@ public class NoteGripPipeline implements VisionPipeline {
 		if (borderValue == null){
 			borderValue = new Scalar(-1);
 		}
-		Imgproc.dilate(src, dst, kernel, anchor, (int)iterations, borderType, borderValue);
+		maskStages.dilate(src, kernel, anchor, (int)iterations, borderType, borderValue, dst);
 	}
 
 	/**
@@ -207,8 +248,8 @@ public class NoteGripPipeline implements VisionPipeline {
 	 */
 	private void findContours(Mat input, boolean externalOnly,
 		List<MatOfPoint> contours) {
-		Mat hierarchy = new Mat();
-		contours.clear();
+		// Free last frame's contours now rather than waiting for finalization
+		NativeMats.releaseAll(contours);
 		int mode;
 		if (externalOnly) {
 			mode = Imgproc.RETR_EXTERNAL;
@@ -236,36 +277,18 @@ public class NoteGripPipeline implements VisionPipeline {
 	 * @param maxVertexCount maximum vertex Count
 	 * @param minRatio minimum ratio of width to height
 	 * @param maxRatio maximum ratio of width to height
+	 * @param outputMats the kept contours as the MatOfPoints they were read from, for drawing
 	 */
-	private void filterContours(List<MatOfPoint> inputContours, double minArea,
+	private void filterContours(ContourSet inputContours, double minArea,
 		double minPerimeter, double minWidth, double maxWidth, double minHeight, double
 		maxHeight, double[] solidity, double maxVertexCount, double minVertexCount, double
-		minRatio, double maxRatio, List<MatOfPoint> output) {
-		final MatOfInt hull = new MatOfInt();
-		output.clear();
-		//operation
-		for (int i = 0; i < inputContours.size(); i++) {
-			final MatOfPoint contour = inputContours.get(i);
-			final Rect bb = Imgproc.boundingRect(contour);
-			if (bb.width < minWidth || bb.width > maxWidth) continue;
-			if (bb.height < minHeight || bb.height > maxHeight) continue;
-			final double area = Imgproc.contourArea(contour);
-			if (area < minArea) continue;
-			if (Imgproc.arcLength(new MatOfPoint2f(contour.toArray()), true) < minPerimeter) continue;
-			Imgproc.convexHull(contour, hull);
-			MatOfPoint mopHull = new MatOfPoint();
-			mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
-			for (int j = 0; j < hull.size().height; j++) {
-				int index = (int)hull.get(j, 0)[0];
-				double[] point = new double[] { contour.get(index, 0)[0], contour.get(index, 0)[1]};
-				mopHull.put(j, 0, point);
-			}
-			final double solid = 100 * area / Imgproc.contourArea(mopHull);
-			if (solid < solidity[0] || solid > solidity[1]) continue;
-			if (contour.rows() < minVertexCount || contour.rows() > maxVertexCount)	continue;
-			final double ratio = bb.width / (double)bb.height;
-			if (ratio < minRatio || ratio > maxRatio) continue;
-			output.add(contour);
+		minRatio, double maxRatio, ContourSet output, List<MatOfPoint> outputMats) {
+		// the tests run on the flat arrays, no JNI call per contour
+		output.filter(inputContours, minArea, minPerimeter, minWidth, maxWidth, minHeight, maxHeight,
+			solidity, maxVertexCount, minVertexCount, minRatio, maxRatio);
+		outputMats.clear();
+		for (int i = 0; i < output.count; i++) {
+			outputMats.add(findContoursOutput.get(output.source[i]));
 		}
 	}
 
@@ -0,0 +1,164 @@
+import edu.wpi.first.networktables.DoubleArrayPublisher;
+import edu.wpi.first.networktables.IntegerPublisher;
+import edu.wpi.first.networktables.NetworkTable;
+
+/**
+ * Where notes have been seen recently, as a grid of cells on the floor in front of the camera.
+ *
+ * <p>Every candidate note in a frame, not just the selected target, is located on the floor with
+ * the camera calibration and raises the confidence of the cell it lands in. Confidence decays
+ * exponentially with a configured half life, so notes that drop out of view or out of the
+ * filtered contours for a few frames are remembered for a while and then forgotten. The grid is
+ * camera relative and knows nothing of robot motion, so the half life should be short next to how
+ * long the robot takes to move a cell.
+ *
+ * <p>The grid is fixed size arrays allocated once, and there is one array to publish for each
+ * number of cells, made the first time that many are published. Decay is lazy: each cell keeps
+ * the time of its last update and is only decayed when it is hit or read, so an update costs the
+ * same however many cells there are, and publishing the top cells is one pass over the grid.
+ *
+ * <p>Published under &lt;table&gt;/Occupancy, timestamped with the frame's capture time: Cells,
+ * the most confident cells as forward meters, left meters and confidence (0-1) triples, best
+ * first, and CaptureTime.
+ */
+public final class NoteOccupancyGrid {
+  private final double cellSize;
+  private final double forwardRange;
+  private final double leftRange;
+  private final int rows;                // along forward
+  private final int cols;                // along left, col 0 furthest right
+  private final double decayPerMicro;    // ln 2 / half life
+  private final double hitWeight;
+  private final double minConfidence;
+
+  private final float[] confidence;
+  private final long[] updated;          // capture time of each cell's confidence, microseconds
+
+  // scratch for the top cells, best first
+  private final int[] topCells;
+  private final float[] topConfidence;
+  // one published array per cell count, since a value is sent whole
+  private final double[][] summaries;
+
+  private final DoubleArrayPublisher pubCells;
+  private final IntegerPublisher pubCaptureTime;
+
+  /**
+   * Create the grid.
+   *
+   * @param config grid size, decay and how many cells to publish
+   * @param table table to publish under
+   */
+  public NoteOccupancyGrid(Main.OccupancyConfig config, NetworkTable table) {
+    cellSize = config.cellSize;
+    forwardRange = config.forward;
+    leftRange = config.width / 2;
+    rows = Math.max(1, (int) Math.ceil(config.forward / config.cellSize));
+    cols = Math.max(1, (int) Math.ceil(config.width / config.cellSize));
+    decayPerMicro = Math.log(2) / (config.halfLife * 1.0e6);
+    hitWeight = config.hitWeight;
+    minConfidence = config.minConfidence;
+
+    confidence = new float[rows * cols];
+    updated = new long[rows * cols];
+    topCells = new int[config.top];
+    topConfidence = new float[config.top];
+    summaries = new double[config.top + 1][];
+
+    NetworkTable occupancyTable = table.getSubTable("Occupancy");
+    pubCells = occupancyTable.getDoubleArrayTopic("Cells").publish();
+    pubCaptureTime = occupancyTable.getIntegerTopic("CaptureTime").publish();
+    System.out.println("Note occupancy grid " + rows + "x" + cols + " cells of " + cellSize + " m");
+  }
+
+  /**
+   * Confidence of a cell as of time, decayed since its last update.
+   */
+  private float decayed(int cell, long time) {
+    float value = confidence[cell];
+    if (value == 0) {
+      return 0;
+    }
+    long age = time - updated[cell];
+    return age <= 0 ? value : (float) (value * Math.exp(-age * decayPerMicro));
+  }
+
+  /**
+   * Count a note seen at a point on the floor.
+   *
+   * @param forward meters ahead of the camera
+   * @param left meters left of the camera
+   * @param time capture time, microseconds
+   */
+  public void hit(double forward, double left, long time) {
+    int cell = cell(forward, left);
+    if (cell < 0) {
+      return;
+    }
+    float value = decayed(cell, time);
+    confidence[cell] = (float) (value + (1 - value) * hitWeight);
+    updated[cell] = time;
+  }
+
+  /**
+   * Publish the most confident cells as of time.
+   */
+  public void publish(long time) {
+    int count = top(time);
+    if (summaries[count] == null) {
+      summaries[count] = new double[3 * count];
+    }
+    double[] summary = summaries[count];
+    for (int i = 0; i < count; i++) {
+      int cell = topCells[i];
+      // cell centres
+      summary[3 * i] = (cell / cols + 0.5) * cellSize;
+      summary[3 * i + 1] = (cell % cols + 0.5) * cellSize - leftRange;
+      summary[3 * i + 2] = topConfidence[i];
+    }
+    pubCells.set(summary, time);
+    pubCaptureTime.set(time, time);
+  }
+
+  /**
+   * Fill topCells with the most confident cells above minConfidence, best first.
+   *
+   * @return how many were found
+   */
+  private int top(long time) {
+    int count = 0;
+    for (int cell = 0; cell < confidence.length; cell++) {
+      float value = decayed(cell, time);
+      if (value < minConfidence) {
+        // forgotten, so later passes skip the decay
+        confidence[cell] = 0;
+        continue;
+      }
+      if (count == topCells.length && value <= topConfidence[count - 1]) {
+        continue;
+      }
+      // insert into the short sorted list, dropping the last if it is full
+      int i = count < topCells.length ? count++ : count - 1;
+      while (i > 0 && topConfidence[i - 1] < value) {
+        topCells[i] = topCells[i - 1];
+        topConfidence[i] = topConfidence[i - 1];
+        i--;
+      }
+      topCells[i] = cell;
+      topConfidence[i] = value;
+    }
+    return count;
+  }
+
+  /**
+   * Index of the cell containing a floor point, -1 outside the grid.
+   */
+  private int cell(double forward, double left) {
+    if (forward < 0 || forward >= forwardRange || left < -leftRange || left >= leftRange) {
+      return -1;
+    }
+    int row = Math.min(rows - 1, (int) (forward / cellSize));
+    int col = Math.min(cols - 1, (int) ((left + leftRange) / cellSize));
+    return row * cols + col;
+  }
+}
@@ -0,0 +1,405 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.wpi.first.cscore.CvSource;
+import edu.wpi.first.networktables.BooleanPublisher;
+import edu.wpi.first.networktables.DoublePublisher;
+import edu.wpi.first.networktables.IntegerPublisher;
+import edu.wpi.first.networktables.NetworkTable;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Note detection as a scheduled job: runs {@link NoteGripPipeline} (or, for the scanline type,
+ * {@link ScanlineBlobExtractor}) on a frame, picks the target, draws it on the driver feed and
+ * publishes it.
+ */
+public class NotePipelineJob implements VisionScheduler.Job {
+  private final NoteGripPipeline pipeline = new NoteGripPipeline();
+  private final Detection detection = new Detection();
+  private final NetworkTable table;
+  private final CameraCalibration calibration;
+  private final CvSource outputStream;
+  private final MatchRecorder matchRecorder;
+  private final ScanlineBlobExtractor scanline;
+  private final Mat overlay = new Mat();
+  // the selected contour, back as a MatOfPoint only to draw it
+  private final MatOfPoint selectedContour = new MatOfPoint();
+  private final List<MatOfPoint> selectedContourList = List.of(selectedContour);
+  private SharedFrameExport sharedExport;
+  private volatile boolean driverFeedPaused;
+  private NoteOccupancyGrid occupancyGrid;
+  private TargetFusion fusion;
+  private int fusionCamera;
+
+  // bounding boxes of this frame's candidate notes, whichever detector found them
+  private int candidateCount;
+  private int[] candidateX = new int[16];
+  private int[] candidateY = new int[16];
+  private int[] candidateWidth = new int[16];
+  private int[] candidateHeight = new int[16];
+
+  // floor positions of the candidates below the horizon, for the occupancy grid and fusion
+  private int groundCount;
+  private double[] groundForward = new double[16];
+  private double[] groundLeft = new double[16];
+
+  private int threadCounter = 0;
+  private long threadCounterTime = 0;
+  private long threadsPerSecond;
+
+  //Network Table Publishers
+  private final BooleanPublisher pubDetectedNote;
+  private final DoublePublisher pubXCenter;
+  private final DoublePublisher pubYCenter;
+  private final DoublePublisher pubWidth;
+  private final DoublePublisher pubHeight;
+  private final DoublePublisher pubAngle;
+  private final DoublePublisher pubYaw;
+  private final DoublePublisher pubPitch;
+  private final DoublePublisher pubDistance;
+  private final IntegerPublisher pubFrameNumber;
+  private final DoublePublisher pubThreadCounter;
+  private final DoublePublisher pubThreadCounterTime;
+  private final DoublePublisher pubThreadsPerSecond;
+  private final DoublePublisher pubNativeMatCount;
+  private final DoublePublisher pubNativeMatBytes;
+
+  // Live native memory held by the vision pipeline, refreshed every frame
+  private final NativeMats nativeMats = new NativeMats();
+
+  private static enum detectionMethodEnum {
+    LOWEST,
+    LARGEST
+    //add more in future if needed
+  };
+
+  // Set the Method to choose the Object returned.
+  // LOWEST returns the Object with teh smallest Y Center
+  // LARGEST returns teh Object with the Largest Area
+  private static detectionMethodEnum detectionMethod = detectionMethodEnum.LOWEST;
+
+  /**
+   * Create the job.
+   *
+   * @param table table to publish to
+   * @param calibration the camera's calibration, null if it has none
+   * @param outputStream driver feed to draw on, null for none
+   * @param matchRecorder recorder for every frame, null for none
+   */
+  public NotePipelineJob(NetworkTable table, CameraCalibration calibration, CvSource outputStream,
+      MatchRecorder matchRecorder) {
+    this(table, calibration, outputStream, matchRecorder, null);
+  }
+
+  /**
+   * Create the job.
+   *
+   * @param table table to publish to
+   * @param calibration the camera's calibration, null if it has none
+   * @param outputStream driver feed to draw on, null for none
+   * @param matchRecorder recorder for every frame, null for none
+   * @param scanline streaming extractor to use instead of the GRIP pipeline, null for GRIP
+   */
+  public NotePipelineJob(NetworkTable table, CameraCalibration calibration, CvSource outputStream,
+      MatchRecorder matchRecorder, ScanlineBlobExtractor scanline) {
+    this.table = table;
+    this.calibration = calibration;
+    this.outputStream = outputStream;
+    this.matchRecorder = matchRecorder;
+    this.scanline = scanline;
+
+    // Setup Network Table Publisher Topics
+    pubDetectedNote = table.getBooleanTopic("DetectedNote").publish();
+    pubXCenter = table.getDoubleTopic("XCenter").publish();
+    pubYCenter = table.getDoubleTopic("YCenter").publish();
+    pubWidth = table.getDoubleTopic("Width").publish();
+    pubHeight = table.getDoubleTopic("Height").publish();
+    pubAngle = table.getDoubleTopic("Angle").publish();
+    pubYaw = table.getDoubleTopic("Yaw").publish();
+    pubPitch = table.getDoubleTopic("Pitch").publish();
+    pubDistance = table.getDoubleTopic("Distance").publish();
+    pubFrameNumber = table.getIntegerTopic("FrameNumber").publish();
+    pubThreadCounter = table.getDoubleTopic("ThreadCounter").publish();
+    pubThreadCounterTime  = table.getDoubleTopic("ThreadCounterTime").publish();
+    pubThreadsPerSecond  = table.getDoubleTopic("ThreadsPerSecond").publish();
+    pubNativeMatCount = table.getDoubleTopic("NativeMatCount").publish();
+    pubNativeMatBytes = table.getDoubleTopic("NativeMatBytes").publish();
+  }
+
+  private void addCandidate(int x, int y, int width, int height) {
+    if (candidateCount == candidateX.length) {
+      candidateX = Arrays.copyOf(candidateX, candidateCount * 2);
+      candidateY = Arrays.copyOf(candidateY, candidateCount * 2);
+      candidateWidth = Arrays.copyOf(candidateWidth, candidateCount * 2);
+      candidateHeight = Arrays.copyOf(candidateHeight, candidateCount * 2);
+      groundForward = Arrays.copyOf(groundForward, candidateCount * 2);
+      groundLeft = Arrays.copyOf(groundLeft, candidateCount * 2);
+    }
+    candidateX[candidateCount] = x;
+    candidateY[candidateCount] = y;
+    candidateWidth[candidateCount] = width;
+    candidateHeight[candidateCount] = height;
+    candidateCount++;
+  }
+
+  /**
+   * The note pipeline this job runs, for choosing its backends.
+   */
+  public NoteGripPipeline pipeline() {
+    return pipeline;
+  }
+
+  /**
+   * Also publish every frame, its threshold mask and its detection to a shared memory export.
+   */
+  public void setSharedExport(SharedFrameExport sharedExport) {
+    this.sharedExport = sharedExport;
+  }
+
+  /**
+   * Also add every candidate note to an occupancy grid, published under this job's table. Needs
+   * the camera calibration.
+   */
+  public void startOccupancyGrid(Main.OccupancyConfig config) {
+    occupancyGrid = new NoteOccupancyGrid(config, table);
+  }
+
+  /**
+   * Also submit every candidate note to cross-camera fusion as this camera's view. Needs the
+   * camera calibration.
+   */
+  public void setFusion(TargetFusion fusion, int camera) {
+    this.fusion = fusion;
+    this.fusionCamera = camera;
+  }
+
+  /**
+   * Stop drawing and sending frames to the driver feed, or start again. Detection and publishing
+   * carry on either way.
+   */
+  public void setDriverFeedPaused(boolean paused) {
+    driverFeedPaused = paused;
+  }
+
+  /**
+   * The last frame's result. Only valid on the thread running the job.
+   */
+  public Detection lastDetection() {
+    return detection;
+  }
+
+  @Override
+  public void run(FrameSource.Frame frame) {
+    VisionEvents.Frame frameEvent = new VisionEvents.Frame();
+    frameEvent.begin();
+
+    long processStart = System.nanoTime();
+    if (scanline != null) {
+      scanline.process(frame.mat);
+    } else {
+      pipeline.process(frame.mat);
+    }
+
+    detection.frameNumber = frame.sequence;
+    detection.captureTime = frame.captureTime;
+    detection.grabNanos = frame.copyNanos;
+    detection.processNanos = System.nanoTime() - processStart;
+    processNoteFrame(frame.mat);
+
+    if (sharedExport != null) {
+      try {
+        // the scanline extractor never builds a mask
+        sharedExport.publish(detection, frame.mat, scanline == null ? pipeline.hslThresholdOutput() : null);
+      } catch (IOException ex) {
+        System.err.println("Shared frame export to '" + sharedExport.getPath() + "' failed, stopping it: " + ex);
+        sharedExport = null;
+      }
+    }
+
+    if (matchRecorder != null) {
+      matchRecorder.record(detection, frame.mat);
+    }
+    frameEvent.skipped = frame.skipped > 0;
+    frameEvent.finish(detection);
+  }
+
+  /**
+   * Find where each candidate touches the floor, at the bottom centre of its box like the target.
+   */
+  private void locateCandidates(Mat frame) {
+    calibration.ensureResolution(frame.cols(), frame.rows());
+    groundCount = 0;
+    for (int i = 0; i < candidateCount; i++) {
+      int u = candidateX[i] + candidateWidth[i] / 2;
+      int v = candidateY[i] + candidateHeight[i] - 1;
+      double forward = calibration.groundForward(v);
+      if (forward >= 0) {
+        groundForward[groundCount] = forward;
+        groundLeft[groundCount] = calibration.groundLeft(u, v);
+        groundCount++;
+      }
+    }
+  }
+
+  /**
+   * Select the target from the detector output, draw it on the driver feed and publish it.
+   */
+  private void processNoteFrame(Mat frame) {
+    long selectStart = System.nanoTime();
+
+    // grab current frame for futre processing and feed to drivers
+    Mat currentFrame;
+    boolean draw = outputStream != null && !driverFeedPaused;
+    candidateCount = 0;
+    if (scanline != null) {
+      // the frame itself may still be recorded, so draw on a copy, and only for the driver feed
+      currentFrame = overlay;
+      if (draw) {
+        frame.copyTo(overlay);
+      }
+      BlobStats blobs = scanline.blobs();
+      for (int i = 0; i < blobs.count; i++) {
+        addCandidate(blobs.minX[i], blobs.minY[i], blobs.width(i), blobs.height(i));
+      }
+    } else {
+      currentFrame = pipeline.maskOutput();
+      ContourSet contours = pipeline.filteredContours();
+      for (int i = 0; i < contours.count; i++) {
+        addCandidate(contours.minX[i], contours.minY[i], contours.width[i], contours.height[i]);
+      }
+    }
+    detection.contourCount = candidateCount;
+
+    // continue with Image processing only if Pipline detects notes
+    if (candidateCount > 0) {
+          int selectedContourIndex = 0;
+          float selectedContourValue = 0;
+
+      // LARGEST dectect mode slects the object with the largest area of all the detected Objects.
+      if (detectionMethod == detectionMethodEnum.LARGEST){
+
+          // Loop through all detected object contours and select the one with the largest area as our main target
+          for (int i = 0; i < candidateCount; i++) {
+            int currentContourArea = candidateHeight[i] * candidateWidth[i];
+            if (currentContourArea > selectedContourValue) {
+              selectedContourIndex = i;
+              selectedContourValue = currentContourArea;
+            }
+          }
+        }
+        // LOWEST dection mode selects the object with the lowest Y center
+        else if (detectionMethod == detectionMethodEnum.LOWEST) {
+          selectedContourIndex = 0;
+          selectedContourValue = 8000;
+          // Loop through all detected object contours and select the one with the smallest Y co-ordinate as our main target
+          for (int i = 0; i < candidateCount; i++) {
+            int currentContourYValue = candidateY[i];
+
+            if (currentContourYValue > selectedContourValue) {
+              selectedContourIndex = i;
+              selectedContourValue = currentContourYValue;
+            }
+          }
+        }
+
+
+        Rect r = new Rect(candidateX[selectedContourIndex], candidateY[selectedContourIndex],
+            candidateWidth[selectedContourIndex], candidateHeight[selectedContourIndex]);
+
+        int centerX = r.x + (r.width/2);
+        int centerY = r.y + (r.height/2);
+
+        if (draw) {
+          Imgproc.rectangle(currentFrame, r, new Scalar(0, 255,0),5);
+        }
+        if (draw && scanline == null) {
+          pipeline.filteredContours().toMatOfPoint(selectedContourIndex, selectedContour);
+          Imgproc.drawContours(currentFrame, selectedContourList, 0, new Scalar(255, 0, 0));
+        }
+
+        detection.detected = true;
+        detection.centerX = centerX;
+        detection.centerY = centerY;
+        detection.width = r.width;
+        detection.height = r.height;
+        detection.angle = ((float)centerX-((float)(Main.kCameraXResolution/2-Main.kCenterPixelOffset))) / ((float)Main.kCameraXResolution/(float)Main.kCameraXFOV);
+
+        // calibrated yaw, pitch and floor distance are table lookups
+        if (calibration != null) {
+          calibration.ensureResolution(frame.cols(), frame.rows());
+          calibration.locate(detection, r.x, r.y, r.width, r.height);
+        }
+      }
+      else{
+        if (draw) {
+          Imgproc.putText(currentFrame, "No Note detected!!!", new Point(30, 30), 0, 0.75, new Scalar(0, 0, 255), 2);
+        }
+        detection.clearTarget();
+      }
+
+    // every candidate goes on the occupancy grid and to fusion, not only the target
+    if (calibration != null && (occupancyGrid != null || fusion != null)) {
+      locateCandidates(frame);
+      for (int i = 0; occupancyGrid != null && i < groundCount; i++) {
+        occupancyGrid.hit(groundForward[i], groundLeft[i], detection.captureTime);
+      }
+      if (fusion != null) {
+        fusion.submit(fusionCamera, detection.captureTime, groundForward, groundLeft, groundCount);
+      }
+    }
+
+    long publishStart = System.nanoTime();
+    detection.selectNanos = publishStart - selectStart;
+
+    //Update Network Tables and Shuffleboard
+    if (draw) {
+      outputStream.putFrame(currentFrame);
+    }
+    pubDetectedNote.set(detection.detected);
+    pubXCenter.set(detection.centerX);
+    pubYCenter.set(detection.centerY);
+    pubWidth.set(detection.width);
+    pubHeight.set(detection.height);
+    pubAngle.set(detection.angle);
+    pubYaw.set(detection.yaw);
+    pubPitch.set(detection.pitch);
+    pubDistance.set(detection.distance);
+    if (occupancyGrid != null && calibration != null) {
+      occupancyGrid.publish(detection.captureTime);
+    }
+    // last, so a subscriber that sees the frame number already has the values above
+    pubFrameNumber.set(detection.frameNumber);
+           
+    //Calculating Threads per Second method 2, flowchart by Steve
+    threadCounter++;
+    
+    if (((long)System.currentTimeMillis()/1000)  > threadCounterTime) {
+      threadsPerSecond = threadCounter;
+      threadCounterTime = ((long)System.currentTimeMillis()/1000);
+      threadCounter = 0;
+    }
+    
+    // Publish Performace Stats to Network Tables
+    pubThreadCounter.set(threadCounter);
+    pubThreadCounterTime.set(threadCounterTime);      
+    pubThreadsPerSecond.set(threadsPerSecond);
+
+    nativeMats.reset();
+    pipeline.measureNativeMemory(nativeMats);
+    nativeMats.add(selectedContour);
+    pubNativeMatCount.set(nativeMats.count());
+    pubNativeMatBytes.set(nativeMats.bytes());
+    
+    // Update network tables now - Don't wait for the 100ms cycle.
+    table.getInstance().flush();
+
+    detection.publishNanos = System.nanoTime() - publishStart;
+  }
+}
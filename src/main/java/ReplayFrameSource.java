@@ -0,0 +1,41 @@
+import org.opencv.core.Mat;
+
+/**
+ * Frames from a {@link FrameReplay}, paced to a camera frame rate.
+ */
+public class ReplayFrameSource extends FrameSource {
+  private final FrameReplay replay;
+  private final long periodNanos;
+  private long nextFrame;
+
+  public ReplayFrameSource(String name, FrameReplay replay, double fps) {
+    super(name);
+    this.replay = replay;
+    this.periodNanos = (long) (1.0e9 / fps);
+  }
+
+  @Override
+  protected long grabFrame(Mat dst) {
+    long now = System.nanoTime();
+    if (nextFrame == 0) {
+      nextFrame = now;
+    }
+    while (now < nextFrame) {
+      try {
+        Thread.sleep((nextFrame - now) / 1000000, (int) ((nextFrame - now) % 1000000));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return 0;
+      }
+      now = System.nanoTime();
+    }
+    nextFrame += periodNanos;
+    replay.next(dst);
+    return now / 1000;
+  }
+
+  @Override
+  protected String getError() {
+    return "replay interrupted";
+  }
+}
@@ -0,0 +1,110 @@
+import java.util.EnumSet;
+import java.util.function.Consumer;
+
+import edu.wpi.first.networktables.IntegerSubscriber;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEvent;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.networktables.StringPublisher;
+
+/**
+ * Follows whether the robot is enabled, and in which mode, from the control word the robot
+ * program publishes at FMSInfo/FMSControlData.
+ *
+ * <p>Changes come from NetworkTables listeners, so they are seen as soon as the value arrives
+ * rather than on some polling period. Until a control word arrives, and whenever the connection
+ * to the robot drops, the mode is {@link Mode#DISCONNECTED}. The current mode is published as
+ * PiVision/RobotMode.
+ */
+public final class RobotState {
+  // HAL control word bits
+  static final long kEnabled = 0x01;
+  static final long kAutonomous = 0x02;
+  static final long kTest = 0x04;
+  static final long kEmergencyStop = 0x08;
+
+  public enum Mode {
+    DISCONNECTED,
+    DISABLED,
+    AUTONOMOUS,
+    TELEOP,
+    TEST;
+
+    /**
+     * Whether the robot can move in this mode, so vision has to run at full rate.
+     */
+    public boolean isEnabled() {
+      return this == AUTONOMOUS || this == TELEOP || this == TEST;
+    }
+  }
+
+  private final NetworkTableInstance inst;
+  private final IntegerSubscriber subControlData;
+  private final StringPublisher pubMode;
+  private volatile Mode mode = Mode.DISCONNECTED;
+  private Consumer<Mode> onChange = m -> { };
+
+  /**
+   * Subscribe to the robot's control word.
+   *
+   * @param inst NetworkTables instance connected to the robot
+   * @param table table to publish the mode to, usually PiVision
+   */
+  public RobotState(NetworkTableInstance inst, NetworkTable table) {
+    this.inst = inst;
+    subControlData = inst.getTable("FMSInfo").getIntegerTopic("FMSControlData").subscribe(0);
+    pubMode = table.getStringTopic("RobotMode").publish();
+    pubMode.set(mode.toString());
+  }
+
+  /**
+   * Decode a control word.
+   */
+  public static Mode decode(long controlWord) {
+    if ((controlWord & kEnabled) == 0 || (controlWord & kEmergencyStop) != 0) {
+      return Mode.DISABLED;
+    }
+    if ((controlWord & kTest) != 0) {
+      return Mode.TEST;
+    }
+    return (controlWord & kAutonomous) != 0 ? Mode.AUTONOMOUS : Mode.TELEOP;
+  }
+
+  /**
+   * Set a callback for mode changes. It runs on the NetworkTables listener thread, so it should
+   * only hand the change on.
+   */
+  public void setOnChange(Consumer<Mode> onChange) {
+    this.onChange = onChange;
+  }
+
+  /**
+   * Start listening. The callback is run once first with the current mode.
+   */
+  public void start() {
+    synchronized (this) {
+      onChange.accept(mode);
+    }
+    inst.addListener(subControlData, EnumSet.of(NetworkTableEvent.Kind.kImmediate, NetworkTableEvent.Kind.kValueAll),
+        event -> update(decode(event.valueData.value.getInteger())));
+    inst.addConnectionListener(false, event -> {
+      if (event.is(NetworkTableEvent.Kind.kDisconnected)) {
+        update(Mode.DISCONNECTED);
+      }
+    });
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  private synchronized void update(Mode newMode) {
+    if (newMode == mode) {
+      return;
+    }
+    System.out.println("Robot mode " + mode + " -> " + newMode);
+    mode = newMode;
+    pubMode.set(newMode.toString());
+    onChange.accept(newMode);
+  }
+}
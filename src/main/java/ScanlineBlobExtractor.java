@@ -0,0 +1,278 @@
+import java.util.Arrays;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Finds color blobs in a single streaming pass over a BGR frame, as a low-memory alternative to
+ * {@link NoteGripPipeline} for targets that only need a box and a centroid.
+ *
+ * <p>The frame is read a row at a time. Each pixel goes through the same HLS test as the GRIP
+ * threshold ({@link ColorThreshold}), matching pixels are collected into runs, and runs that
+ * come near a run on the rows above are joined into blobs with union-find. Area, bounding box and
+ * centroid sums are kept per blob as the runs arrive, so the only per-pixel state is the current
+ * row and the runs of the last few rows, kept in a ring; no mask, eroded mask or dilated mask is
+ * ever built.
+ *
+ * <p>Instead of erode and dilate, runs shorter than minRun are dropped (thin noise) and matching
+ * pixels up to maxGap apart are joined into one run. A run is joined into the blob of every run
+ * within maxGap columns of it on any of the maxGap + 1 rows above, so gaps of up to maxGap empty
+ * rows are bridged as well. Areas count the joined runs, gaps within a row included but skipped
+ * rows not, so they are close to the area after the GRIP pipeline's dilate rather than the raw
+ * threshold.
+ */
+public final class ScanlineBlobExtractor {
+  // NoteGripPipeline's steps
+  private static final double[] kNoteHue = {8.093525179856115, 29.999999999999993};
+  private static final double[] kNoteSaturation = {227.02338129496403, 255.0};
+  private static final double[] kNoteLuminance = {114.65827338129496, 205.6313131313131};
+  private static final int kNoteMinArea = 200;
+
+  private final int[] hue;
+  private final int[] sat;
+  private final int[] lum;
+  private final int minRun;
+  private final int maxGap;
+  private final int minArea;
+
+  private byte[] row = new byte[0];
+
+  // runs on the current row and the maxGap + 1 rows above it, ring indexed by row:
+  // first and last column, and blob label
+  private final int[][] runStart;
+  private final int[][] runEnd;
+  private final int[][] runLabel;
+  private final int[] runCount;
+  private final int[] firstCandidate;   // per row above, the first run that can still touch
+  private int current;                  // ring slot of the current row
+
+  // union-find over labels, with each label's own share of the stats until the end of the frame
+  private int labelCount;
+  private int[] parent = new int[64];
+  private int[] area = new int[64];
+  private int[] minX = new int[64];
+  private int[] minY = new int[64];
+  private int[] maxX = new int[64];
+  private int[] maxY = new int[64];
+  private long[] sumX = new long[64];
+  private long[] sumY = new long[64];
+
+  private final BlobStats blobs = new BlobStats();
+
+  /**
+   * Create an extractor.
+   *
+   * @param hue min and max hue, 0-180
+   * @param sat min and max saturation
+   * @param lum min and max luminance
+   * @param minRun shortest run of matching pixels that counts
+   * @param maxGap largest gap, in pixels, bridged within a row, between the runs of nearby rows, and
+   *     in empty rows between runs
+   * @param minArea smallest blob reported
+   */
+  public ScanlineBlobExtractor(double[] hue, double[] sat, double[] lum, int minRun, int maxGap,
+      int minArea) {
+    this.hue = ColorThreshold.bounds(hue);
+    this.sat = ColorThreshold.bounds(sat);
+    this.lum = ColorThreshold.bounds(lum);
+    this.minRun = minRun;
+    this.maxGap = maxGap;
+    this.minArea = minArea;
+
+    int ringRows = maxGap + 2;
+    runStart = new int[ringRows][64];
+    runEnd = new int[ringRows][64];
+    runLabel = new int[ringRows][64];
+    runCount = new int[ringRows];
+    firstCandidate = new int[ringRows];
+  }
+
+  /**
+   * An extractor with NoteGripPipeline's thresholds and minimum area. Runs under 3 pixels are
+   * dropped like the 3x3 erode would, and gaps up to 4 pixels, across or down, are bridged like
+   * the following dilate by 3 would.
+   */
+  public static ScanlineBlobExtractor forNotes() {
+    return new ScanlineBlobExtractor(kNoteHue, kNoteSaturation, kNoteLuminance, 3, 4, kNoteMinArea);
+  }
+
+  /**
+   * The blobs from the last call to {@link #process}.
+   */
+  public BlobStats blobs() {
+    return blobs;
+  }
+
+  /**
+   * Find the blobs in an 8-bit BGR frame.
+   */
+  public BlobStats process(Mat bgr) {
+    if (bgr.type() != CvType.CV_8UC3) {
+      throw new IllegalArgumentException("scanline extractor needs an 8-bit BGR frame, got " + bgr);
+    }
+    int cols = bgr.cols();
+    if (row.length != cols * 3) {
+      row = new byte[cols * 3];
+    }
+    labelCount = 0;
+
+    for (int y = 0; y < bgr.rows(); y++) {
+      bgr.get(y, 0, row);
+      current = y % runCount.length;
+      findRuns(cols);
+      linkRuns(y);
+    }
+
+    collectBlobs();
+    return blobs;
+  }
+
+  /**
+   * Classify the current row and collect its runs, bridging short gaps.
+   */
+  private void findRuns(int cols) {
+    runCount[current] = 0;
+    int start = -1;
+    int lastMatch = -1;
+    for (int x = 0; x < cols; x++) {
+      if (!ColorThreshold.hls(row[x * 3] & 0xFF, row[x * 3 + 1] & 0xFF, row[x * 3 + 2] & 0xFF, hue, lum, sat)) {
+        continue;
+      }
+      if (start >= 0 && x - lastMatch - 1 > maxGap) {
+        addRun(start, lastMatch);
+        start = -1;
+      }
+      if (start < 0) {
+        start = x;
+      }
+      lastMatch = x;
+    }
+    if (start >= 0) {
+      addRun(start, lastMatch);
+    }
+  }
+
+  private void addRun(int start, int end) {
+    if (end - start + 1 < minRun) {
+      return;
+    }
+    int count = runCount[current];
+    if (count == runStart[current].length) {
+      runStart[current] = Arrays.copyOf(runStart[current], count * 2);
+      runEnd[current] = Arrays.copyOf(runEnd[current], count * 2);
+      runLabel[current] = Arrays.copyOf(runLabel[current], count * 2);
+    }
+    runStart[current][count] = start;
+    runEnd[current][count] = end;
+    runCount[current] = count + 1;
+  }
+
+  /**
+   * Give every run on this row a label, joining the blobs of the runs it comes within maxGap of on
+   * the rows above, and add the run to its label's stats.
+   */
+  private void linkRuns(int y) {
+    int rowsAbove = Math.min(y, runCount.length - 1);
+    Arrays.fill(firstCandidate, 0);
+    int[] starts = runStart[current];
+    int[] ends = runEnd[current];
+    int[] labels = runLabel[current];
+    for (int i = 0; i < runCount[current]; i++) {
+      int start = starts[i] - maxGap - 1;
+      int end = ends[i] + maxGap + 1;
+      int label = -1;
+      for (int d = 1; d <= rowsAbove; d++) {
+        int above = (y - d) % runCount.length;
+        int[] aboveStart = runStart[above];
+        int[] aboveEnd = runEnd[above];
+        int aboveCount = runCount[above];
+        // runs above that end before this one starts can't touch any later run either
+        int first = firstCandidate[d];
+        while (first < aboveCount && aboveEnd[first] < start) {
+          first++;
+        }
+        firstCandidate[d] = first;
+        for (int j = first; j < aboveCount && aboveStart[j] <= end; j++) {
+          int root = find(runLabel[above][j]);
+          if (label < 0) {
+            label = root;
+          } else if (root != label) {
+            parent[root] = label;
+          }
+        }
+      }
+      if (label < 0) {
+        label = newLabel();
+      }
+      labels[i] = label;
+
+      int length = ends[i] - starts[i] + 1;
+      area[label] += length;
+      minX[label] = Math.min(minX[label], starts[i]);
+      maxX[label] = Math.max(maxX[label], ends[i]);
+      minY[label] = Math.min(minY[label], y);
+      maxY[label] = Math.max(maxY[label], y);
+      // sum of x over the run is length * (start + end) / 2
+      sumX[label] += (long) length * (starts[i] + ends[i]) / 2;
+      sumY[label] += (long) length * y;
+    }
+  }
+
+  private int newLabel() {
+    if (labelCount == parent.length) {
+      int size = labelCount * 2;
+      parent = Arrays.copyOf(parent, size);
+      area = Arrays.copyOf(area, size);
+      minX = Arrays.copyOf(minX, size);
+      minY = Arrays.copyOf(minY, size);
+      maxX = Arrays.copyOf(maxX, size);
+      maxY = Arrays.copyOf(maxY, size);
+      sumX = Arrays.copyOf(sumX, size);
+      sumY = Arrays.copyOf(sumY, size);
+    }
+    int label = labelCount++;
+    parent[label] = label;
+    area[label] = 0;
+    minX[label] = Integer.MAX_VALUE;
+    minY[label] = Integer.MAX_VALUE;
+    maxX[label] = Integer.MIN_VALUE;
+    maxY[label] = Integer.MIN_VALUE;
+    sumX[label] = 0;
+    sumY[label] = 0;
+    return label;
+  }
+
+  private int find(int label) {
+    while (parent[label] != label) {
+      // path halving
+      parent[label] = parent[parent[label]];
+      label = parent[label];
+    }
+    return label;
+  }
+
+  /**
+   * Fold every label's stats into its root and report the roots that are big enough.
+   */
+  private void collectBlobs() {
+    for (int label = 0; label < labelCount; label++) {
+      int root = find(label);
+      if (root != label) {
+        area[root] += area[label];
+        minX[root] = Math.min(minX[root], minX[label]);
+        minY[root] = Math.min(minY[root], minY[label]);
+        maxX[root] = Math.max(maxX[root], maxX[label]);
+        maxY[root] = Math.max(maxY[root], maxY[label]);
+        sumX[root] += sumX[label];
+        sumY[root] += sumY[label];
+      }
+    }
+    blobs.clear();
+    for (int label = 0; label < labelCount; label++) {
+      if (parent[label] == label && area[label] >= minArea) {
+        blobs.add(area[label], minX[label], minY[label], maxX[label], maxY[label],
+            sumX[label] / (double) area[label], sumY[label] / (double) area[label]);
+      }
+    }
+  }
+}
@@ -0,0 +1,336 @@
+import java.util.Arrays;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+
+/**
+ * Erode, dilate, open and close on 8-bit single channel Mats with rectangular structuring
+ * elements, done as separable row and column passes in one streaming pass over the frame.
+ *
+ * <p>n iterations with a w x h rectangle give the same result as one iteration with an
+ * (n(w-1)+1) x (n(h-1)+1) rectangle, so iterations are folded into one element first. A
+ * rectangle's minimum or maximum is a row minimum followed by a column minimum: each input row
+ * gets its row pass once (van Herk/Gil-Werman, three comparisons a pixel whatever the width) into
+ * a ring of the last h rows, and each output row is the column minimum over the ring. Open and
+ * close chain an erode and a dilate stage row by row, so even those read the input once and
+ * write the output once; the iteration chains they replace take one full frame pass per
+ * iteration.
+ *
+ * <p>Borders follow OpenCV's BORDER_CONSTANT: by default pixels outside the image don't take
+ * part, otherwise they have the border value. Results match chains of single-iteration
+ * Imgproc.erode and Imgproc.dilate calls exactly ({@code FrameReplay separable} checks this on
+ * recorded frames). Like {@link BitMaskMorphology}, when the next operation's input is the Mat
+ * the last one wrote, its bytes are used without copying them out of the Mat again.
+ */
+public final class SeparableMorphology {
+
+  /**
+   * A filled rectangle and its anchor.
+   */
+  public static final class Element {
+    public final int width;
+    public final int height;
+    public final int anchorX;
+    public final int anchorY;
+
+    public Element(int width, int height, int anchorX, int anchorY) {
+      if (width < 1 || height < 1 || anchorX < 0 || anchorX >= width || anchorY < 0 || anchorY >= height) {
+        throw new IllegalArgumentException("bad structuring element " + width + "x" + height
+            + " anchored at " + anchorX + "," + anchorY);
+      }
+      this.width = width;
+      this.height = height;
+      this.anchorX = anchorX;
+      this.anchorY = anchorY;
+    }
+
+    /**
+     * A rectangle anchored at its center, as OpenCV anchors (-1, -1).
+     */
+    public static Element rect(int width, int height) {
+      return new Element(width, height, width / 2, height / 2);
+    }
+
+    /**
+     * The element for an OpenCV kernel and anchor: 3x3 for an empty kernel, as Imgproc does.
+     *
+     * @return null if the kernel isn't a filled 8-bit rectangle
+     */
+    public static Element of(Mat kernel, Point anchor) {
+      if (kernel.empty()) {
+        return rect(3, 3);
+      }
+      if (kernel.type() != CvType.CV_8UC1 || Core.countNonZero(kernel) != kernel.total()) {
+        return null;
+      }
+      int width = kernel.cols();
+      int height = kernel.rows();
+      return new Element(width, height, anchor.x < 0 ? width / 2 : (int) anchor.x,
+          anchor.y < 0 ? height / 2 : (int) anchor.y);
+    }
+
+    /**
+     * The single element equivalent to applying this one iterations times.
+     */
+    public Element iterate(int iterations) {
+      if (iterations <= 1) {
+        return this;
+      }
+      return new Element(iterations * (width - 1) + 1, iterations * (height - 1) + 1,
+          iterations * anchorX, iterations * anchorY);
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height;
+    }
+  }
+
+  /**
+   * One erode or dilate over a stream of rows, with the rows it still needs kept in a ring.
+   */
+  private static final class Stage {
+    private Element element;
+    private boolean erode;
+    private int outside;
+    private int cols;
+    private byte[][] ring = new byte[0][];
+    private int[] line = new int[0];
+    private int[] prefix = new int[0];
+    private int[] suffix = new int[0];
+    private byte[] out = new byte[0];
+    private int pushed;
+    private int emitted;
+
+    // where output rows go: the next stage, or rows of dst
+    private Stage next;
+    private byte[] dst;
+
+    void configure(Element element, boolean erode, int borderPixel, int cols) {
+      this.element = element;
+      this.erode = erode;
+      // OpenCV's default border is whichever value never wins
+      this.outside = borderPixel >= 0 ? borderPixel : (erode ? 255 : 0);
+      this.cols = cols;
+      if (ring.length != element.height || out.length != cols) {
+        ring = new byte[element.height][cols];
+        out = new byte[cols];
+      }
+      int padded = cols + element.width - 1;
+      if (line.length < padded) {
+        line = new int[padded];
+        prefix = new int[padded];
+        suffix = new int[padded];
+      }
+    }
+
+    /**
+     * Start a frame, with the border rows above the image.
+     */
+    void begin() {
+      pushed = 0;
+      emitted = 0;
+      for (int i = 0; i < element.anchorY; i++) {
+        pushOutside();
+      }
+    }
+
+    /**
+     * Finish a frame with the border rows below the image, and finish the stages after this one.
+     */
+    void finish() {
+      for (int i = 0; i < element.height - 1 - element.anchorY; i++) {
+        pushOutside();
+      }
+      if (next != null) {
+        next.finish();
+      }
+    }
+
+    void pushRow(byte[] src, int offset) {
+      byte[] row = ring[pushed % element.height];
+      int width = element.width;
+      if (width == 1) {
+        System.arraycopy(src, offset, row, 0, cols);
+      } else {
+        // the row with the border around it, so output x covers line[x, x + width)
+        int left = element.anchorX;
+        for (int i = 0; i < left; i++) {
+          line[i] = outside;
+        }
+        for (int x = 0; x < cols; x++) {
+          line[left + x] = src[offset + x] & 0xFF;
+        }
+        int padded = cols + width - 1;
+        for (int i = left + cols; i < padded; i++) {
+          line[i] = outside;
+        }
+
+        // van Herk/Gil-Werman: running extremes forward and backward within blocks of width
+        for (int i = 0; i < padded; i++) {
+          prefix[i] = i % width == 0 ? line[i] : combine(prefix[i - 1], line[i]);
+        }
+        for (int i = padded - 1; i >= 0; i--) {
+          suffix[i] = i == padded - 1 || (i + 1) % width == 0 ? line[i] : combine(suffix[i + 1], line[i]);
+        }
+        for (int x = 0; x < cols; x++) {
+          row[x] = (byte) combine(suffix[x], prefix[x + width - 1]);
+        }
+      }
+      advance();
+    }
+
+    private void pushOutside() {
+      // a border row stays all border after the row pass
+      Arrays.fill(ring[pushed % element.height], (byte) outside);
+      advance();
+    }
+
+    private void advance() {
+      pushed++;
+      if (pushed < element.height) {
+        return;
+      }
+      // the ring now holds exactly the rows output row emitted needs
+      System.arraycopy(ring[0], 0, out, 0, cols);
+      for (int r = 1; r < element.height; r++) {
+        byte[] row = ring[r];
+        for (int x = 0; x < cols; x++) {
+          out[x] = (byte) combine(out[x] & 0xFF, row[x] & 0xFF);
+        }
+      }
+      if (next != null) {
+        next.pushRow(out, 0);
+      } else {
+        System.arraycopy(out, 0, dst, emitted * cols, cols);
+      }
+      emitted++;
+    }
+
+    private int combine(int a, int b) {
+      return erode ? Math.min(a, b) : Math.max(a, b);
+    }
+  }
+
+  private final Stage first = new Stage();
+  private final Stage second = new Stage();
+  private byte[] image = new byte[0];
+  private byte[] result = new byte[0];
+  private int rows;
+  private int cols;
+  private Mat lastOutput;
+
+  // full frame passes made, and what the iteration chains they replace would have made
+  private long passes;
+  private long chainPasses;
+
+  /**
+   * Erode with element, iterations times.
+   *
+   * @param borderValue value of pixels outside the image, see {@link MaskBackend#supportsBorder}
+   */
+  public void erode(Mat src, Element element, int iterations, Scalar borderValue, Mat dst) {
+    run(src, element, iterations, true, false, borderValue, dst);
+  }
+
+  /**
+   * Dilate with element, iterations times.
+   *
+   * @param borderValue value of pixels outside the image, see {@link MaskBackend#supportsBorder}
+   */
+  public void dilate(Mat src, Element element, int iterations, Scalar borderValue, Mat dst) {
+    run(src, element, iterations, false, false, borderValue, dst);
+  }
+
+  /**
+   * Erode then dilate, iterations times each, like Imgproc.morphologyEx with MORPH_OPEN.
+   */
+  public void open(Mat src, Element element, int iterations, Scalar borderValue, Mat dst) {
+    run(src, element, iterations, true, true, borderValue, dst);
+  }
+
+  /**
+   * Dilate then erode, iterations times each, like Imgproc.morphologyEx with MORPH_CLOSE.
+   */
+  public void close(Mat src, Element element, int iterations, Scalar borderValue, Mat dst) {
+    run(src, element, iterations, false, true, borderValue, dst);
+  }
+
+  /**
+   * Full frame passes made so far.
+   */
+  public long passes() {
+    return passes;
+  }
+
+  /**
+   * Full frame passes the equivalent chains of single-iteration OpenCV calls would have made.
+   */
+  public long chainPasses() {
+    return chainPasses;
+  }
+
+  private void run(Mat src, Element element, int iterations, boolean erode, boolean twoStages,
+      Scalar borderValue, Mat dst) {
+    load(src);
+    apply(image, result, rows, cols, element.iterate(iterations), erode, twoStages,
+        MaskBackend.borderPixel(borderValue));
+    passes++;
+    chainPasses += (twoStages ? 2 : 1) * Math.max(1, iterations);
+    store(dst);
+  }
+
+  /**
+   * One streaming pass from src to dst, both rows * cols bytes.
+   *
+   * @param twoStages whether to follow with the opposite operation, for open and close
+   * @param border border pixel value, -1 for OpenCV's default
+   */
+  void apply(byte[] src, byte[] dst, int rows, int cols, Element element, boolean erode,
+      boolean twoStages, int border) {
+    first.configure(element, erode, border, cols);
+    first.next = null;
+    first.dst = dst;
+    if (twoStages) {
+      second.configure(element, !erode, border, cols);
+      second.next = null;
+      second.dst = dst;
+      first.next = second;
+      second.begin();
+    }
+    first.begin();
+    for (int y = 0; y < rows; y++) {
+      first.pushRow(src, y * cols);
+    }
+    first.finish();
+  }
+
+  private void load(Mat src) {
+    if (src.type() != CvType.CV_8UC1) {
+      throw new IllegalArgumentException("separable morphology needs an 8-bit single channel image, got " + src);
+    }
+    rows = src.rows();
+    cols = src.cols();
+    if (image.length != rows * cols) {
+      image = new byte[rows * cols];
+      result = new byte[rows * cols];
+      lastOutput = null;
+    }
+    // src is only trusted to still hold image if it is the Mat we just wrote
+    if (src != lastOutput) {
+      src.get(0, 0, image);
+    }
+  }
+
+  private void store(Mat dst) {
+    dst.create(rows, cols, CvType.CV_8UC1);
+    dst.put(0, 0, result);
+    byte[] swap = image;
+    image = result;
+    result = swap;
+    lastOutput = dst;
+  }
+}
@@ -0,0 +1,211 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Measures {@link SharedFrameExport} and {@link SharedFrameReader} against what an MJPEG consumer
+ * pays per frame.
+ *
+ * <pre>
+ *   java -cp java-multiCameraServer-all.jar SharedFrameBenchmark [width height] [fps] [seconds] [file]
+ * </pre>
+ * First the writer publishes as fast as it can on its own. Then it publishes at the given frame
+ * rate while two readers in other threads, each with its own mapping as another process would
+ * have, take every new frame: one reads it in place, one copies it out. Each reader reports how
+ * many frames it got, how many reads it had to retry and the time from publish to a consistent
+ * read. Last, the JPEG encode and decode that each MJPEG consumer costs is timed on the same
+ * frame for comparison.
+ */
+public final class SharedFrameBenchmark {
+  private static final long kWriterOnlyNanos = 1000000000L;
+  private static final int kJpegIterations = 200;
+  private static final long kPollNanos = 20000;
+
+  static {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  /**
+   * One reader thread's results.
+   */
+  private static final class ReaderStats {
+    long frames;
+    long retries;
+    long checksum;
+    long[] latencyNanos = new long[1024];
+
+    void addLatency(long nanos) {
+      if (frames == latencyNanos.length) {
+        latencyNanos = Arrays.copyOf(latencyNanos, latencyNanos.length * 2);
+      }
+      latencyNanos[(int) frames] = nanos;
+    }
+  }
+
+  private SharedFrameBenchmark() {
+  }
+
+  /*** Benchmark ***/
+  public static void main(String... args) throws IOException, InterruptedException {
+    int width = args.length > 1 ? Integer.parseInt(args[0]) : 320;
+    int height = args.length > 1 ? Integer.parseInt(args[1]) : 240;
+    double fps = args.length > 2 ? Double.parseDouble(args[2]) : 90;
+    double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 5;
+    String path = args.length > 4 ? args[4]
+        : (new File("/dev/shm").isDirectory() ? "/dev/shm" : System.getProperty("java.io.tmpdir"))
+            + "/pivision-benchmark";
+
+    Mat frame = new Mat(height, width, CvType.CV_8UC3);
+    Core.randu(frame, 0, 256);
+    Mat mask = new Mat(height, width, CvType.CV_8UC1);
+    Core.compare(frame.reshape(1).colRange(0, width), new Scalar(128), mask, Core.CMP_GT);
+    Detection detection = new Detection();
+    System.out.println(String.format("%dx%d frame, %d bytes with mask, export at %s", width, height,
+        frame.total() * frame.elemSize() + mask.total(), path));
+
+    try (SharedFrameExport export = new SharedFrameExport(path)) {
+      // writer alone
+      long publishes = 0;
+      long start = System.nanoTime();
+      long end = start + kWriterOnlyNanos;
+      while (System.nanoTime() < end) {
+        detection.frameNumber++;
+        export.publish(detection, frame, mask);
+        publishes++;
+      }
+      double publishNanos = (System.nanoTime() - start) / (double) publishes;
+      System.out.println(String.format("publish alone: %.1f us per frame, %.0f MB/s", publishNanos / 1000,
+          (frame.total() * frame.elemSize() + mask.total()) / publishNanos * 1000));
+
+      // writer at camera rate with a zero-copy and a copying reader
+      AtomicBoolean running = new AtomicBoolean(true);
+      ReaderStats inPlace = new ReaderStats();
+      ReaderStats copying = new ReaderStats();
+      Thread inPlaceThread = new Thread(() -> readInPlace(path, running, inPlace), "reader-in-place");
+      Thread copyingThread = new Thread(() -> readCopying(path, running, copying), "reader-copying");
+      inPlaceThread.start();
+      copyingThread.start();
+
+      long period = (long) (1.0e9 / fps);
+      long next = System.nanoTime();
+      end = next + (long) (seconds * 1.0e9);
+      long published = 0;
+      while (next < end) {
+        while (System.nanoTime() < next) {
+          Thread.onSpinWait();
+        }
+        detection.frameNumber++;
+        // publish time goes where a camera frame's capture time would, for the readers' latency
+        detection.captureTime = System.nanoTime();
+        export.publish(detection, frame, mask);
+        published++;
+        next += period;
+      }
+      running.set(false);
+      inPlaceThread.join();
+      copyingThread.join();
+
+      System.out.println(String.format("published %d frames at %.0f fps", published, fps));
+      report("in place", inPlace);
+      report("copying ", copying);
+    }
+    new File(path).delete();
+
+    // what each MJPEG consumer costs instead
+    MatOfByte jpeg = new MatOfByte();
+    Mat decoded = new Mat();
+    long encodeNanos = 0;
+    long decodeNanos = 0;
+    for (int i = 0; i < kJpegIterations; i++) {
+      long start = System.nanoTime();
+      Imgcodecs.imencode(".jpg", frame, jpeg);
+      long middle = System.nanoTime();
+      decoded.release();
+      decoded = Imgcodecs.imdecode(jpeg, Imgcodecs.IMREAD_COLOR);
+      long end = System.nanoTime();
+      encodeNanos += middle - start;
+      decodeNanos += end - middle;
+    }
+    System.out.println(String.format("MJPEG per consumer: encode %.1f us + decode %.1f us per frame",
+        encodeNanos / 1000.0 / kJpegIterations, decodeNanos / 1000.0 / kJpegIterations));
+
+    jpeg.release();
+    decoded.release();
+    frame.release();
+    mask.release();
+  }
+
+  private static void report(String name, ReaderStats stats) {
+    if (stats.frames == 0) {
+      System.out.println(name + ": no frames");
+      return;
+    }
+    System.out.println(String.format("%s: %d frames, %d retried reads, publish to read %s", name, stats.frames,
+        stats.retries, FrameReplay.summarize(Arrays.copyOf(stats.latencyNanos, (int) stats.frames))));
+  }
+
+  /**
+   * Sum every frame where it lies in the mapping, the least a consumer could do with it.
+   */
+  private static void readInPlace(String path, AtomicBoolean running, ReaderStats stats) {
+    try (SharedFrameReader reader = new SharedFrameReader(path)) {
+      long last = reader.sequence();
+      while (running.get()) {
+        if (reader.waitForNewer(last, kPollNanos, kPollNanos * 100) == last) {
+          continue;
+        }
+        long sequence = reader.begin();
+        long captureTime = reader.captureTime();
+        ByteBuffer pixels = reader.frame().order(ByteOrder.LITTLE_ENDIAN);
+        long sum = 0;
+        int i = 0;
+        for (; i + 8 <= pixels.limit(); i += 8) {
+          sum += pixels.getLong(i);
+        }
+        if (reader.validate(sequence)) {
+          stats.addLatency(System.nanoTime() - captureTime);
+          stats.frames++;
+          stats.checksum += sum;
+          last = sequence;
+        }
+      }
+      stats.retries = reader.retries();
+    } catch (IOException ex) {
+      System.err.println("in place reader failed: " + ex);
+    }
+  }
+
+  /**
+   * Copy every frame and mask out of the mapping.
+   */
+  private static void readCopying(String path, AtomicBoolean running, ReaderStats stats) {
+    try (SharedFrameReader reader = new SharedFrameReader(path)) {
+      Detection detection = new Detection();
+      byte[] frame = new byte[reader.frameBytes()];
+      byte[] mask = new byte[reader.maskRows() * reader.maskCols()];
+      long last = reader.sequence();
+      while (running.get()) {
+        if (reader.waitForNewer(last, kPollNanos, kPollNanos * 100) == last) {
+          continue;
+        }
+        last = reader.copyLatest(detection, frame, mask);
+        stats.addLatency(System.nanoTime() - detection.captureTime);
+        stats.frames++;
+        stats.checksum += frame[0];
+      }
+      stats.retries = reader.retries();
+    } catch (IOException ex) {
+      System.err.println("copying reader failed: " + ex);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Publishes the newest frame, threshold mask and detection into a memory-mapped file, usually
+ * under /dev/shm, so other processes on the Pi can read them without pulling and decoding the
+ * MJPEG stream. See {@link SharedFrameReader}.
+ *
+ * <p>The file holds one frame, overwritten every publish, guarded by a seqlock: the sequence in
+ * the header is odd while a publish is in progress and goes up by two for each complete one. A
+ * reader notes the sequence, reads what it needs straight out of its own mapping and then checks
+ * that the sequence hasn't moved. The writer never waits for readers. Publishing is one native
+ * copy of the frame and one of the mask into the mapping; no encoding and no write() calls.
+ *
+ * <p>The file only ever grows, when a frame is bigger than any before it, so a reader's older,
+ * smaller mapping stays valid. The header says how much of the file is in use.
+ *
+ * <p>File layout, little endian:
+ * <pre>
+ *   header (128 bytes): magic, version, sequence, size in use, frame number, capture time,
+ *                       frame rows, cols, type and offset, mask rows, cols and offset, detection
+ *   frame: rows * cols * channels bytes, continuous
+ *   mask: rows * cols bytes, continuous, absent when rows is 0
+ * </pre>
+ */
+public final class SharedFrameExport implements AutoCloseable {
+  static final int kMagic = 0x50565348;  // "PVSH"
+  static final int kVersion = 1;
+  static final int kHeaderSize = 128;
+  static final int kAlignment = 64;
+
+  // header offsets
+  static final int kHeaderMagic = 0;
+  static final int kHeaderVersion = 4;
+  static final int kHeaderSequence = 8;
+  static final int kHeaderInUse = 16;
+  static final int kHeaderFrameNumber = 24;
+  static final int kHeaderCaptureTime = 32;
+  static final int kHeaderFrameRows = 40;
+  static final int kHeaderFrameCols = 44;
+  static final int kHeaderFrameType = 48;
+  static final int kHeaderFrameOffset = 52;
+  static final int kHeaderMaskRows = 56;
+  static final int kHeaderMaskCols = 60;
+  static final int kHeaderMaskOffset = 64;
+  static final int kHeaderDetected = 68;
+  static final int kHeaderContourCount = 72;
+  static final int kHeaderCenterX = 76;
+  static final int kHeaderCenterY = 80;
+  static final int kHeaderWidth = 84;
+  static final int kHeaderHeight = 88;
+  static final int kHeaderAngle = 96;
+  static final int kHeaderYaw = 104;
+  static final int kHeaderPitch = 112;
+  static final int kHeaderDistance = 120;
+
+  // the seqlock word, with the memory ordering plain ByteBuffer access doesn't give
+  static final VarHandle kLongs = MethodHandles.byteBufferViewVarHandle(long[].class,
+      ByteOrder.LITTLE_ENDIAN);
+
+  private final String path;
+  private final RandomAccessFile file;
+  private MappedByteBuffer buffer;
+  private long sequence;
+
+  // views over the frame and mask regions of the mapping, rebuilt when the layout changes
+  private Mat frameView = new Mat();
+  private Mat maskView = new Mat();
+  private int frameRows;
+  private int frameCols;
+  private int frameType = -1;
+  private int maskRows;
+  private int maskCols;
+  private int maskOffset;
+  private long inUse;
+
+  /**
+   * Create the export file, or take over one left by an earlier run without truncating it under
+   * any reader that still has it mapped. Nothing is mapped until the first publish.
+   */
+  public SharedFrameExport(String path) throws IOException {
+    this.path = path;
+    file = new RandomAccessFile(path, "rw");
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Publish a frame.
+   *
+   * @param detection the frame's detection
+   * @param frame the camera frame
+   * @param mask the thresholded CV_8UC1 mask, null if the pipeline doesn't make one
+   */
+  public void publish(Detection detection, Mat frame, Mat mask) throws IOException {
+    if (mask != null && mask.type() != CvType.CV_8UC1) {
+      throw new IllegalArgumentException("shared export needs an 8-bit single channel mask, got " + mask);
+    }
+    int newMaskRows = mask != null ? mask.rows() : 0;
+    int newMaskCols = mask != null ? mask.cols() : 0;
+    boolean relayout = frame.rows() != frameRows || frame.cols() != frameCols || frame.type() != frameType
+        || newMaskRows != maskRows || newMaskCols != maskCols;
+    if (relayout) {
+      layout(frame.rows(), frame.cols(), frame.type(), newMaskRows, newMaskCols);
+    }
+
+    // odd while writing
+    kLongs.setOpaque(buffer, kHeaderSequence, ++sequence);
+    VarHandle.storeStoreFence();
+
+    if (relayout) {
+      buffer.putLong(kHeaderInUse, inUse);
+      buffer.putInt(kHeaderFrameRows, frameRows);
+      buffer.putInt(kHeaderFrameCols, frameCols);
+      buffer.putInt(kHeaderFrameType, frameType);
+      buffer.putInt(kHeaderFrameOffset, kHeaderSize);
+      buffer.putInt(kHeaderMaskRows, maskRows);
+      buffer.putInt(kHeaderMaskCols, maskCols);
+      buffer.putInt(kHeaderMaskOffset, maskOffset);
+    }
+    buffer.putLong(kHeaderFrameNumber, detection.frameNumber);
+    buffer.putLong(kHeaderCaptureTime, detection.captureTime);
+    buffer.putInt(kHeaderDetected, detection.detected ? 1 : 0);
+    buffer.putInt(kHeaderContourCount, detection.contourCount);
+    buffer.putInt(kHeaderCenterX, detection.centerX);
+    buffer.putInt(kHeaderCenterY, detection.centerY);
+    buffer.putInt(kHeaderWidth, detection.width);
+    buffer.putInt(kHeaderHeight, detection.height);
+    buffer.putDouble(kHeaderAngle, detection.angle);
+    buffer.putDouble(kHeaderYaw, detection.yaw);
+    buffer.putDouble(kHeaderPitch, detection.pitch);
+    buffer.putDouble(kHeaderDistance, detection.distance);
+    // the views are the mapping itself, so these copy straight into the shared pages
+    frame.copyTo(frameView);
+    if (mask != null) {
+      mask.copyTo(maskView);
+    }
+
+    // even again once everything above is visible
+    VarHandle.releaseFence();
+    kLongs.setRelease(buffer, kHeaderSequence, ++sequence);
+  }
+
+  /**
+   * Lay the mapping out for a new frame or mask size, growing the file if needed. The header
+   * isn't touched until the next write.
+   */
+  private void layout(int rows, int cols, int type, int newMaskRows, int newMaskCols) throws IOException {
+    long frameBytes = (long) rows * cols * CvType.ELEM_SIZE(type);
+    long newMaskOffset = align(kHeaderSize + frameBytes);
+    long size = newMaskOffset + (long) newMaskRows * newMaskCols;
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("frame too large to export: " + rows + "x" + cols);
+    }
+    frameView.release();
+    maskView.release();
+    if (buffer == null || size > buffer.capacity()) {
+      // grow only, a reader may still have the old size mapped
+      file.setLength(Math.max(size, file.length()));
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      if (sequence == 0 && buffer.getInt(kHeaderMagic) == kMagic) {
+        // carry on from the last run's sequence so its readers see the new frames as newer
+        sequence = ((long) kLongs.getVolatile(buffer, kHeaderSequence) + 1) & ~1L;
+      }
+      buffer.putInt(kHeaderMagic, kMagic);
+      buffer.putInt(kHeaderVersion, kVersion);
+    }
+
+    frameView = new Mat(rows, cols, type, buffer.slice(kHeaderSize, (int) frameBytes));
+    maskView = newMaskRows > 0
+        ? new Mat(newMaskRows, newMaskCols, CvType.CV_8UC1, buffer.slice((int) newMaskOffset, newMaskRows * newMaskCols))
+        : new Mat();
+    inUse = size;
+    frameRows = rows;
+    frameCols = cols;
+    frameType = type;
+    maskRows = newMaskRows;
+    maskCols = newMaskCols;
+    maskOffset = (int) newMaskOffset;
+  }
+
+  private static long align(long offset) {
+    return (offset + kAlignment - 1) / kAlignment * kAlignment;
+  }
+
+  @Override
+  public void close() throws IOException {
+    frameView.release();
+    maskView.release();
+    file.close();
+  }
+}
@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads the frame, mask and detection published by a {@link SharedFrameExport}, for processes on
+ * the same machine.
+ *
+ * <p>Zero-copy use reads straight out of the mapping between {@link #begin} and
+ * {@link #validate}, and throws away anything it read if validate fails:
+ * <pre>
+ *   long sequence = reader.begin();
+ *   ByteBuffer frame = reader.frame();   // rows * cols * channels bytes, BGR
+ *   ... read frame ...
+ *   if (reader.validate(sequence)) { ... use what was read ... }
+ * </pre>
+ * {@link #copyLatest} does the same loop and copies a consistent frame out, for callers that want
+ * to keep it.
+ */
+public final class SharedFrameReader implements AutoCloseable {
+  // bytes per channel for each OpenCV depth, so readers don't need OpenCV
+  private static final int[] kDepthBytes = {1, 1, 2, 2, 4, 4, 8, 2};
+
+  private final String path;
+  private final RandomAccessFile file;
+  private MappedByteBuffer buffer;
+  private long retries;
+
+  /**
+   * Map an export file. The writer must have published at least once.
+   */
+  public SharedFrameReader(String path) throws IOException {
+    this.path = path;
+    file = new RandomAccessFile(path, "r");
+    map();
+    if (buffer.capacity() < SharedFrameExport.kHeaderSize
+        || buffer.getInt(SharedFrameExport.kHeaderMagic) != SharedFrameExport.kMagic) {
+      file.close();
+      throw new IOException("[" + path + "] is not a shared frame export");
+    }
+    int version = buffer.getInt(SharedFrameExport.kHeaderVersion);
+    if (version != SharedFrameExport.kVersion) {
+      file.close();
+      throw new IOException("[" + path + "] is export version " + version + ", expected " + SharedFrameExport.kVersion);
+    }
+  }
+
+  private void map() throws IOException {
+    buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * The writer's current sequence: odd while it is publishing, 0 before the first frame.
+   */
+  public long sequence() {
+    return (long) SharedFrameExport.kLongs.getAcquire(buffer, SharedFrameExport.kHeaderSequence);
+  }
+
+  /**
+   * Wait until no publish is in progress and return the sequence to pass to {@link #validate}.
+   * Remaps the file first if the writer has grown it.
+   */
+  public long begin() throws IOException {
+    for (;;) {
+      long sequence = sequence();
+      if ((sequence & 1) == 0) {
+        if (buffer.getLong(SharedFrameExport.kHeaderInUse) > buffer.capacity()) {
+          map();
+          continue;
+        }
+        return sequence;
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * Whether nothing was published since {@link #begin} returned sequence, so everything read in
+   * between is one consistent frame.
+   */
+  public boolean validate(long sequence) {
+    VarHandle.acquireFence();
+    if ((long) SharedFrameExport.kLongs.getVolatile(buffer, SharedFrameExport.kHeaderSequence) == sequence) {
+      return true;
+    }
+    retries++;
+    return false;
+  }
+
+  /**
+   * Wait for a sequence newer than last, polling every pollNanos.
+   *
+   * @return the new sequence, or last if timeoutNanos passed first
+   */
+  public long waitForNewer(long last, long pollNanos, long timeoutNanos) {
+    long deadline = System.nanoTime() + timeoutNanos;
+    for (;;) {
+      long sequence = sequence();
+      if (sequence > last && (sequence & 1) == 0) {
+        return sequence;
+      }
+      if (System.nanoTime() - deadline > 0) {
+        return last;
+      }
+      LockSupport.parkNanos(pollNanos);
+    }
+  }
+
+  /**
+   * Number of reads that had to be thrown away because the writer published during them.
+   */
+  public long retries() {
+    return retries;
+  }
+
+  public long frameNumber() {
+    return buffer.getLong(SharedFrameExport.kHeaderFrameNumber);
+  }
+
+  public long captureTime() {
+    return buffer.getLong(SharedFrameExport.kHeaderCaptureTime);
+  }
+
+  public int frameRows() {
+    return buffer.getInt(SharedFrameExport.kHeaderFrameRows);
+  }
+
+  public int frameCols() {
+    return buffer.getInt(SharedFrameExport.kHeaderFrameCols);
+  }
+
+  /**
+   * OpenCV type of the frame, CV_8UC3 for camera frames.
+   */
+  public int frameType() {
+    return buffer.getInt(SharedFrameExport.kHeaderFrameType);
+  }
+
+  public int maskRows() {
+    return buffer.getInt(SharedFrameExport.kHeaderMaskRows);
+  }
+
+  public int maskCols() {
+    return buffer.getInt(SharedFrameExport.kHeaderMaskCols);
+  }
+
+  /**
+   * The frame's bytes in the mapping, no copy. Only valid until the next {@link #begin}.
+   */
+  public ByteBuffer frame() {
+    return region(buffer.getInt(SharedFrameExport.kHeaderFrameOffset), frameBytes());
+  }
+
+  /**
+   * The mask's bytes in the mapping, no copy, empty if the pipeline has no mask. Only valid until
+   * the next {@link #begin}.
+   */
+  public ByteBuffer mask() {
+    return region(buffer.getInt(SharedFrameExport.kHeaderMaskOffset), maskRows() * maskCols());
+  }
+
+  private ByteBuffer region(int offset, int length) {
+    // a torn header can point anywhere, validate will reject whatever was read
+    if (offset < 0 || length < 0 || (long) offset + length > buffer.capacity()) {
+      return ByteBuffer.allocate(0);
+    }
+    return buffer.slice(offset, length);
+  }
+
+  /**
+   * Size of the frame in bytes, for sizing {@link #copyLatest}'s buffer.
+   */
+  public int frameBytes() {
+    // OpenCV packs the depth in the low 3 bits and channels - 1 above them
+    int type = frameType();
+    return frameRows() * frameCols() * ((type >> 3) + 1) * kDepthBytes[type & 7];
+  }
+
+  /**
+   * Copy the detection fields into dst.
+   */
+  public void readDetection(Detection dst) {
+    dst.frameNumber = frameNumber();
+    dst.captureTime = captureTime();
+    dst.detected = buffer.getInt(SharedFrameExport.kHeaderDetected) != 0;
+    dst.contourCount = buffer.getInt(SharedFrameExport.kHeaderContourCount);
+    dst.centerX = buffer.getInt(SharedFrameExport.kHeaderCenterX);
+    dst.centerY = buffer.getInt(SharedFrameExport.kHeaderCenterY);
+    dst.width = buffer.getInt(SharedFrameExport.kHeaderWidth);
+    dst.height = buffer.getInt(SharedFrameExport.kHeaderHeight);
+    dst.angle = buffer.getDouble(SharedFrameExport.kHeaderAngle);
+    dst.yaw = buffer.getDouble(SharedFrameExport.kHeaderYaw);
+    dst.pitch = buffer.getDouble(SharedFrameExport.kHeaderPitch);
+    dst.distance = buffer.getDouble(SharedFrameExport.kHeaderDistance);
+  }
+
+  /**
+   * Copy out one consistent detection, frame and mask, retrying while the writer publishes.
+   *
+   * @param detection filled with the detection, null to skip
+   * @param frame filled with the frame, null to skip; must hold {@link #frameBytes}
+   * @param mask filled with the mask, null to skip; must hold maskRows * maskCols
+   * @return the sequence that was read
+   */
+  public long copyLatest(Detection detection, byte[] frame, byte[] mask) throws IOException {
+    for (;;) {
+      long sequence = begin();
+      if (detection != null) {
+        readDetection(detection);
+      }
+      ByteBuffer frameBytes = frame != null ? frame() : null;
+      ByteBuffer maskBytes = mask != null ? mask() : null;
+      boolean fits = (frameBytes == null || frameBytes.remaining() <= frame.length)
+          && (maskBytes == null || maskBytes.remaining() <= mask.length);
+      if (fits) {
+        if (frameBytes != null) {
+          frameBytes.get(frame, 0, frameBytes.remaining());
+        }
+        if (maskBytes != null) {
+          maskBytes.get(mask, 0, maskBytes.remaining());
+        }
+      }
+      if (validate(sequence)) {
+        if (!fits) {
+          throw new IllegalArgumentException("buffers too small for a " + frameRows() + "x" + frameCols() + " frame");
+        }
+        return sequence;
+      }
+    }
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
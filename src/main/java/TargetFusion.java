@@ -0,0 +1,207 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.RawPublisher;
+
+/**
+ * Merges the notes every camera sees into one robot relative target list.
+ *
+ * <p>Each note pipeline on a calibrated camera submits the floor position of every candidate in
+ * its frame, camera relative, with the frame's capture time. They are moved into robot
+ * coordinates with the camera's mount (x forward and y left of the robot centre, yaw to the
+ * left). Each submit publishes the fusion of every camera's latest frame, leaving out cameras
+ * whose latest frame is more than the maximum skew older than the newest one, so one record never
+ * mixes a fresh view with a stale one. Positions seen by different cameras within the merge
+ * distance of each other are one note, placed at the mean of the sightings.
+ *
+ * <p>The list goes to &lt;table&gt;/Targets as one raw value of type "pivision-targets",
+ * timestamped with the newest capture time, nearest note first. Little endian:
+ * <pre>
+ *   header (16 bytes): version (short), count (short), cameras used (int bitmask),
+ *                      capture time (long, microseconds)
+ *   count targets (24 bytes each): x, y (float, meters), range (float, meters),
+ *                      bearing (float, degrees left), cameras (int bitmask),
+ *                      age (int, microseconds older than the header's capture time)
+ * </pre>
+ */
+public final class TargetFusion {
+  static final short kVersion = 1;
+  static final String kType = "pivision-targets";
+  static final int kHeaderSize = 16;
+  static final int kTargetSize = 24;
+  static final int kMaxCameras = 32;
+  static final int kMaxTargets = 32;
+
+  /**
+   * Where a camera sits on the robot.
+   */
+  @SuppressWarnings("MemberName")
+  public static final class Mount {
+    public final double x;       // meters forward of the robot centre
+    public final double y;       // meters left of the robot centre
+    public final double yaw;     // degrees, positive when turned left
+    private final double cos;
+    private final double sin;
+
+    public Mount(double x, double y, double yawDegrees) {
+      this.x = x;
+      this.y = y;
+      this.yaw = yawDegrees;
+      this.cos = Math.cos(Math.toRadians(yawDegrees));
+      this.sin = Math.sin(Math.toRadians(yawDegrees));
+    }
+  }
+
+  // each camera's latest frame, robot relative
+  private final Mount[] mounts = new Mount[kMaxCameras];
+  private final long[] captureTime = new long[kMaxCameras];
+  private final int[] count = new int[kMaxCameras];
+  private final float[][] x = new float[kMaxCameras][kMaxTargets];
+  private final float[][] y = new float[kMaxCameras][kMaxTargets];
+
+  // the fused targets
+  private int targetCount;
+  private final float[] targetX = new float[kMaxTargets];
+  private final float[] targetY = new float[kMaxTargets];
+  private final int[] targetSightings = new int[kMaxTargets];
+  private final int[] targetCameras = new int[kMaxTargets];
+  private final long[] targetTime = new long[kMaxTargets];
+  private final int[] order = new int[kMaxTargets];
+  private long fusedTime;      // newest capture time of the cameras used
+  private int fusedCameras;    // bitmask of the cameras used
+
+  // one record buffer per target count, since a raw value is sent whole
+  private final byte[][] records = new byte[kMaxTargets + 1][];
+
+  private final double mergeDistance;
+  private final long maxSkewMicros;
+  private final RawPublisher pubTargets;
+
+  /**
+   * Create the fusion stage.
+   *
+   * @param config merge distance and maximum skew
+   * @param table table to publish under, usually PiVision
+   */
+  public TargetFusion(Main.FusionConfig config, NetworkTable table) {
+    mergeDistance = config.mergeDistance;
+    maxSkewMicros = config.maxSkewMillis * 1000L;
+    pubTargets = table.getRawTopic("Targets").publish(kType);
+  }
+
+  /**
+   * Say where a camera is mounted. Must be called before its first submit.
+   */
+  public synchronized void setMount(int camera, Mount mount) {
+    mounts[camera] = mount;
+  }
+
+  /**
+   * Replace a camera's targets with one frame's, then publish the fused list.
+   *
+   * @param camera camera index, below 32
+   * @param time the frame's capture time, microseconds
+   * @param forward meters ahead of the camera of each target
+   * @param left meters left of the camera of each target
+   * @param n number of targets; any past the 32nd are dropped
+   */
+  public synchronized void submit(int camera, long time, double[] forward, double[] left, int n) {
+    Mount mount = mounts[camera];
+    n = Math.min(n, kMaxTargets);
+    for (int i = 0; i < n; i++) {
+      x[camera][i] = (float) (mount.x + forward[i] * mount.cos - left[i] * mount.sin);
+      y[camera][i] = (float) (mount.y + forward[i] * mount.sin + left[i] * mount.cos);
+    }
+    count[camera] = n;
+    captureTime[camera] = time;
+    fuse();
+    publish();
+  }
+
+  private void fuse() {
+    long newest = 0;
+    for (int c = 0; c < kMaxCameras; c++) {
+      if (mounts[c] != null) {
+        newest = Math.max(newest, captureTime[c]);
+      }
+    }
+
+    targetCount = 0;
+    fusedTime = newest;
+    fusedCameras = 0;
+    for (int c = 0; c < kMaxCameras; c++) {
+      if (mounts[c] == null || captureTime[c] == 0 || newest - captureTime[c] > maxSkewMicros) {
+        continue;
+      }
+      fusedCameras |= 1 << c;
+      for (int i = 0; i < count[c]; i++) {
+        // the nearest target another camera has already placed, if it is close enough
+        int match = -1;
+        double best = mergeDistance * mergeDistance;
+        for (int t = 0; t < targetCount; t++) {
+          if ((targetCameras[t] & (1 << c)) != 0) {
+            continue;
+          }
+          double dx = targetX[t] - x[c][i];
+          double dy = targetY[t] - y[c][i];
+          double d2 = dx * dx + dy * dy;
+          if (d2 <= best) {
+            best = d2;
+            match = t;
+          }
+        }
+        if (match >= 0) {
+          // running mean of the sightings
+          int n = ++targetSightings[match];
+          targetX[match] += (x[c][i] - targetX[match]) / n;
+          targetY[match] += (y[c][i] - targetY[match]) / n;
+          targetCameras[match] |= 1 << c;
+          targetTime[match] = Math.max(targetTime[match], captureTime[c]);
+        } else if (targetCount < kMaxTargets) {
+          targetX[targetCount] = x[c][i];
+          targetY[targetCount] = y[c][i];
+          targetSightings[targetCount] = 1;
+          targetCameras[targetCount] = 1 << c;
+          targetTime[targetCount] = captureTime[c];
+          targetCount++;
+        }
+      }
+    }
+  }
+
+  private void publish() {
+    // nearest first, insertion sort of a handful
+    for (int t = 0; t < targetCount; t++) {
+      int j = t;
+      while (j > 0 && range(order[j - 1]) > range(t)) {
+        order[j] = order[j - 1];
+        j--;
+      }
+      order[j] = t;
+    }
+
+    if (records[targetCount] == null) {
+      records[targetCount] = new byte[kHeaderSize + targetCount * kTargetSize];
+    }
+    ByteBuffer record = ByteBuffer.wrap(records[targetCount]).order(ByteOrder.LITTLE_ENDIAN);
+    record.putShort(kVersion);
+    record.putShort((short) targetCount);
+    record.putInt(fusedCameras);
+    record.putLong(fusedTime);
+    for (int k = 0; k < targetCount; k++) {
+      int t = order[k];
+      record.putFloat(targetX[t]);
+      record.putFloat(targetY[t]);
+      record.putFloat((float) range(t));
+      record.putFloat((float) Math.toDegrees(Math.atan2(targetY[t], targetX[t])));
+      record.putInt(targetCameras[t]);
+      record.putInt((int) (fusedTime - targetTime[t]));
+    }
+    pubTargets.set(records[targetCount], fusedTime);
+  }
+
+  private double range(int t) {
+    return Math.hypot(targetX[t], targetY[t]);
+  }
+}
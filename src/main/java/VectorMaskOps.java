@@ -0,0 +1,416 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * Threshold, erode and dilate in pure Java on the Vector API, as an alternative to the OpenCV
+ * calls in the GRIP pipelines.
+ *
+ * <p>Frames are copied once into direct buffers that OpenCV Mats are wrapped around, so getting
+ * pixels in and out is a single native copy and there is no per-pixel JNI. Everything in between
+ * runs on SIMD lanes of the platform's preferred vector size.
+ *
+ * <p>Results match OpenCV: the HLS conversion repeats OpenCV's float arithmetic and rounding, the
+ * HSV conversion uses its integer tables, and inRange rounds the bounds the same way (the odd
+ * pixels past the last full vector go through {@link ColorThreshold}). Erode and
+ * dilate assume a binary mask (0 or 255, which is what the thresholds produce), the default 3x3
+ * kernel and a constant border of 0, 255 or OpenCV's default, so they reduce to AND and OR. Note
+ * that GRIP's border value of Scalar(-1) saturates to 0, so erode clears the image edges just as
+ * OpenCV does. Iterations are fused
+ * the way OpenCV does it, into one (2n+1) square window, and that window is applied as a row pass
+ * and a column pass.
+ *
+ * <p>Needs the JVM to be started with --add-modules jdk.incubator.vector; see
+ * {@link MaskBackend#vectorApiAvailable}.
+ */
+public final class VectorMaskOps {
+  private static final VectorSpecies<Byte> kBytes = ByteVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Integer> kInts = IntVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Float> kFloats = FloatVector.SPECIES_PREFERRED;
+  private static final int kLanes = kBytes.length();
+  private static final int kParts = kLanes / kInts.length();
+  private static final ByteOrder kOrder = ByteOrder.nativeOrder();
+
+  // shuffles that pull one channel out of three consecutive vectors of interleaved BGR
+  private static final VectorShuffle<Byte>[] kFirstTwo;
+  private static final VectorShuffle<Byte>[] kThird;
+  private static final VectorMask<Byte>[] kFromThird;
+
+  static {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    VectorShuffle<Byte>[] firstTwo = new VectorShuffle[3];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    VectorShuffle<Byte>[] third = new VectorShuffle[3];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    VectorMask<Byte>[] fromThird = new VectorMask[3];
+    for (int c = 0; c < 3; c++) {
+      int[] firstTwoIndex = new int[kLanes];
+      int[] thirdIndex = new int[kLanes];
+      boolean[] thirdLanes = new boolean[kLanes];
+      for (int i = 0; i < kLanes; i++) {
+        int source = 3 * i + c;
+        if (source < 2 * kLanes) {
+          // indexes past the first vector select from the second
+          firstTwoIndex[i] = source;
+        } else {
+          thirdIndex[i] = source - 2 * kLanes;
+          thirdLanes[i] = true;
+        }
+      }
+      firstTwo[c] = VectorShuffle.fromArray(kBytes, firstTwoIndex, 0);
+      third[c] = VectorShuffle.fromArray(kBytes, thirdIndex, 0);
+      fromThird[c] = VectorMask.fromArray(kBytes, thirdLanes, 0);
+    }
+    kFirstTwo = firstTwo;
+    kThird = third;
+    kFromThird = fromThird;
+  }
+
+  private int rows;
+  private int cols;
+  private ByteBuffer frame;
+  private ByteBuffer maskA;
+  private ByteBuffer maskB;
+  private Mat frameView;
+  private Mat maskAView;
+  private Mat maskBView;
+
+  /**
+   * Threshold a BGR frame in HLS, like Imgproc.cvtColor(COLOR_BGR2HLS) then Core.inRange.
+   *
+   * @param input 8-bit BGR frame
+   * @param hue min and max hue, 0-180
+   * @param sat min and max saturation
+   * @param lum min and max luminance
+   * @param out binary mask, 255 where all three are in range
+   */
+  public void hlsThreshold(Mat input, double[] hue, double[] sat, double[] lum, Mat out) {
+    loadFrame(input);
+    hlsThreshold(frame, maskA, rows * cols, ColorThreshold.bounds(hue), ColorThreshold.bounds(lum),
+        ColorThreshold.bounds(sat));
+    maskAView.copyTo(out);
+  }
+
+  /**
+   * Threshold a BGR frame in HSV, like Imgproc.cvtColor(COLOR_BGR2HSV) then Core.inRange.
+   *
+   * @param input 8-bit BGR frame
+   * @param hue min and max hue, 0-180
+   * @param sat min and max saturation
+   * @param val min and max value
+   * @param out binary mask, 255 where all three are in range
+   */
+  public void hsvThreshold(Mat input, double[] hue, double[] sat, double[] val, Mat out) {
+    loadFrame(input);
+    hsvThreshold(frame, maskA, rows * cols, ColorThreshold.bounds(hue), ColorThreshold.bounds(sat),
+        ColorThreshold.bounds(val));
+    maskAView.copyTo(out);
+  }
+
+  /**
+   * Erode a binary mask with the 3x3 kernel, iterations times.
+   *
+   * @param borderValue value of pixels outside the image, see {@link MaskBackend#supportsBorder}
+   */
+  public void erode(Mat src, int iterations, Scalar borderValue, Mat dst) {
+    // outside pixels only matter to AND when they are 0
+    morphology(src, iterations, VectorOperators.AND, MaskBackend.borderPixel(borderValue) == 0, dst);
+  }
+
+  /**
+   * Dilate a binary mask with the 3x3 kernel, iterations times.
+   *
+   * @param borderValue value of pixels outside the image, see {@link MaskBackend#supportsBorder}
+   */
+  public void dilate(Mat src, int iterations, Scalar borderValue, Mat dst) {
+    // outside pixels only matter to OR when they are 255
+    morphology(src, iterations, VectorOperators.OR, MaskBackend.borderPixel(borderValue) == 255, dst);
+  }
+
+  /**
+   * Adds the Mats wrapped around this instance's buffers to the given stats.
+   */
+  public void measureNativeMemory(NativeMats stats) {
+    if (frameView != null) {
+      stats.add(frameView);
+      stats.add(maskAView);
+      stats.add(maskBView);
+    }
+  }
+
+  private void morphology(Mat src, int iterations, VectorOperators.Associative op, boolean absorbingBorder,
+      Mat dst) {
+    if (src.type() != CvType.CV_8UC1) {
+      throw new IllegalArgumentException("morphology needs an 8-bit single channel mask, got " + src);
+    }
+    ensureSize(src.rows(), src.cols());
+    src.copyTo(maskAView);
+    if (iterations > 0) {
+      rowPass(maskA, maskB, rows, cols, iterations, op, absorbingBorder);
+      columnPass(maskB, maskA, rows, cols, iterations, op, absorbingBorder);
+    }
+    maskAView.copyTo(dst);
+  }
+
+  private void loadFrame(Mat input) {
+    if (input.type() != CvType.CV_8UC3) {
+      throw new IllegalArgumentException("threshold needs an 8-bit BGR frame, got " + input);
+    }
+    ensureSize(input.rows(), input.cols());
+    input.copyTo(frameView);
+  }
+
+  /**
+   * (Re)allocate the buffers for a frame size. The Mats share the buffers' memory, so copying
+   * into a view of the same size and type fills the buffer directly.
+   */
+  private void ensureSize(int rows, int cols) {
+    if (frameView != null && rows == this.rows && cols == this.cols) {
+      return;
+    }
+    if (frameView != null) {
+      frameView.release();
+      maskAView.release();
+      maskBView.release();
+    }
+    this.rows = rows;
+    this.cols = cols;
+    frame = ByteBuffer.allocateDirect(rows * cols * 3).order(kOrder);
+    maskA = ByteBuffer.allocateDirect(rows * cols).order(kOrder);
+    maskB = ByteBuffer.allocateDirect(rows * cols).order(kOrder);
+    frameView = new Mat(rows, cols, CvType.CV_8UC3, frame);
+    maskAView = new Mat(rows, cols, CvType.CV_8UC1, maskA);
+    maskBView = new Mat(rows, cols, CvType.CV_8UC1, maskB);
+  }
+
+  /*** Threshold kernels ***/
+
+  static void hlsThreshold(ByteBuffer bgr, ByteBuffer mask, int pixels, int[] h, int[] l, int[] s) {
+    int p = 0;
+    for (; p + kLanes <= pixels; p += kLanes) {
+      ByteVector v0 = ByteVector.fromByteBuffer(kBytes, bgr, p * 3, kOrder);
+      ByteVector v1 = ByteVector.fromByteBuffer(kBytes, bgr, p * 3 + kLanes, kOrder);
+      ByteVector v2 = ByteVector.fromByteBuffer(kBytes, bgr, p * 3 + 2 * kLanes, kOrder);
+      ByteVector blue = channel(v0, v1, v2, 0);
+      ByteVector green = channel(v0, v1, v2, 1);
+      ByteVector red = channel(v0, v1, v2, 2);
+
+      ByteVector result = ByteVector.zero(kBytes);
+      for (int part = 0; part < kParts; part++) {
+        FloatVector b = toFloat(blue, part).mul(1.f / 255.f);
+        FloatVector g = toFloat(green, part).mul(1.f / 255.f);
+        FloatVector r = toFloat(red, part).mul(1.f / 255.f);
+
+        // same operations, in the same order, as OpenCV's RGB2HLS_f
+        FloatVector vmax = r.max(g).max(b);
+        FloatVector vmin = r.min(g).min(b);
+        FloatVector diff = vmax.sub(vmin);
+        FloatVector lum = vmax.add(vmin).mul(0.5f);
+        VectorMask<Float> chroma = diff.compare(VectorOperators.GT, Math.ulp(1.0f));
+        FloatVector sat = diff.div(FloatVector.broadcast(kFloats, 2.f).sub(vmax).sub(vmin)
+            .blend(vmax.add(vmin), lum.compare(VectorOperators.LT, 0.5f)));
+        FloatVector scale = FloatVector.broadcast(kFloats, 60.f).div(diff);
+        FloatVector hue = r.sub(g).mul(scale).add(240.f)
+            .blend(b.sub(r).mul(scale).add(120.f), vmax.eq(g))
+            .blend(g.sub(b).mul(scale), vmax.eq(r));
+        hue = hue.add(360.f, hue.compare(VectorOperators.LT, 0.f));
+        hue = FloatVector.zero(kFloats).blend(hue.mul(0.5f), chroma);
+        sat = FloatVector.zero(kFloats).blend(sat, chroma);
+
+        VectorMask<Integer> pass = inRange(round(hue), h)
+            .and(inRange(round(lum.mul(255.f)), l))
+            .and(inRange(round(sat.mul(255.f)), s));
+        result = result.or(toBytes(pass, part));
+      }
+      result.intoByteBuffer(mask, p, kOrder);
+    }
+
+    for (; p < pixels; p++) {
+      boolean pass = ColorThreshold.hls(bgr.get(p * 3) & 0xFF, bgr.get(p * 3 + 1) & 0xFF,
+          bgr.get(p * 3 + 2) & 0xFF, h, l, s);
+      mask.put(p, pass ? (byte) 255 : 0);
+    }
+  }
+
+  static void hsvThreshold(ByteBuffer bgr, ByteBuffer mask, int pixels, int[] h, int[] s, int[] v) {
+    int[] gatherIndex = new int[kInts.length()];
+    int round = 1 << (ColorThreshold.kHsvShift - 1);
+    int p = 0;
+    for (; p + kLanes <= pixels; p += kLanes) {
+      ByteVector v0 = ByteVector.fromByteBuffer(kBytes, bgr, p * 3, kOrder);
+      ByteVector v1 = ByteVector.fromByteBuffer(kBytes, bgr, p * 3 + kLanes, kOrder);
+      ByteVector v2 = ByteVector.fromByteBuffer(kBytes, bgr, p * 3 + 2 * kLanes, kOrder);
+      ByteVector blue = channel(v0, v1, v2, 0);
+      ByteVector green = channel(v0, v1, v2, 1);
+      ByteVector red = channel(v0, v1, v2, 2);
+
+      ByteVector result = ByteVector.zero(kBytes);
+      for (int part = 0; part < kParts; part++) {
+        IntVector b = toInt(blue, part);
+        IntVector g = toInt(green, part);
+        IntVector r = toInt(red, part);
+
+        // same fixed point arithmetic as OpenCV's RGB2HSV_b
+        IntVector val = r.max(g).max(b);
+        IntVector diff = val.sub(r.min(g).min(b));
+        VectorMask<Integer> maxIsRed = val.eq(r);
+        VectorMask<Integer> maxIsGreen = val.eq(g).andNot(maxIsRed);
+        val.intoArray(gatherIndex, 0);
+        IntVector sat = diff.mul(IntVector.fromArray(kInts, ColorThreshold.kSaturationDiv, 0, gatherIndex, 0))
+            .add(round).lanewise(VectorOperators.ASHR, ColorThreshold.kHsvShift);
+        IntVector hue = r.sub(g).add(diff.mul(4))
+            .blend(b.sub(r).add(diff.mul(2)), maxIsGreen)
+            .blend(g.sub(b), maxIsRed);
+        diff.intoArray(gatherIndex, 0);
+        hue = hue.mul(IntVector.fromArray(kInts, ColorThreshold.kHueDiv, 0, gatherIndex, 0))
+            .add(round).lanewise(VectorOperators.ASHR, ColorThreshold.kHsvShift);
+        hue = hue.add(180, hue.compare(VectorOperators.LT, 0));
+
+        VectorMask<Integer> pass = inRange(hue, h).and(inRange(sat, s)).and(inRange(val, v));
+        result = result.or(toBytes(pass, part));
+      }
+      result.intoByteBuffer(mask, p, kOrder);
+    }
+
+    for (; p < pixels; p++) {
+      boolean pass = ColorThreshold.hsv(bgr.get(p * 3) & 0xFF, bgr.get(p * 3 + 1) & 0xFF,
+          bgr.get(p * 3 + 2) & 0xFF, h, s, v);
+      mask.put(p, pass ? (byte) 255 : 0);
+    }
+  }
+
+  /**
+   * One channel of the kLanes pixels held, interleaved, in three consecutive vectors.
+   */
+  private static ByteVector channel(ByteVector v0, ByteVector v1, ByteVector v2, int c) {
+    return v0.rearrange(kFirstTwo[c], v1).blend(v2.rearrange(kThird[c]), kFromThird[c]);
+  }
+
+  /**
+   * One quarter (for 32-bit lanes) of an unsigned byte vector, widened to ints.
+   */
+  private static IntVector toInt(ByteVector bytes, int part) {
+    return ((IntVector) bytes.convertShape(VectorOperators.B2I, kInts, part)).and(0xFF);
+  }
+
+  private static FloatVector toFloat(ByteVector bytes, int part) {
+    return (FloatVector) toInt(bytes, part).convert(VectorOperators.I2F, 0);
+  }
+
+  /**
+   * 0 or 255 per lane, placed in the byte lanes the part came from and zero elsewhere.
+   */
+  private static ByteVector toBytes(VectorMask<Integer> pass, int part) {
+    IntVector lanes = IntVector.zero(kInts).blend(-1, pass);
+    return (ByteVector) lanes.convertShape(VectorOperators.I2B, kBytes, -part);
+  }
+
+  /**
+   * Round non-negative values to the nearest integer, ties to even, like OpenCV's cvRound.
+   */
+  private static IntVector round(FloatVector x) {
+    IntVector truncated = (IntVector) x.add(0.5f).convert(VectorOperators.F2I, 0);
+    FloatVector back = (FloatVector) truncated.convert(VectorOperators.I2F, 0);
+    VectorMask<Integer> tie = back.sub(x).compare(VectorOperators.EQ, 0.5f).cast(kInts);
+    VectorMask<Integer> odd = truncated.and(1).compare(VectorOperators.NE, 0);
+    return truncated.sub(1, tie.and(odd));
+  }
+
+  private static VectorMask<Integer> inRange(IntVector x, int[] range) {
+    return x.compare(VectorOperators.GE, range[0]).and(x.compare(VectorOperators.LE, range[1]));
+  }
+
+  /*** Morphology kernels ***/
+
+  /**
+   * Combine each pixel with its neighbours up to radius columns away, within the row.
+   *
+   * <p>With an absorbing border, any pixel whose window reaches outside the image takes the
+   * border value (0 for AND, 255 for OR); otherwise pixels outside are left out.
+   */
+  static void rowPass(ByteBuffer src, ByteBuffer dst, int rows, int cols, int radius,
+      VectorOperators.Associative op, boolean absorbingBorder) {
+    for (int y = 0; y < rows; y++) {
+      int row = y * cols;
+      int x = 0;
+      for (; x < Math.min(radius, cols); x++) {
+        dst.put(row + x, rowPixel(src, row, cols, x, radius, op, absorbingBorder));
+      }
+      for (; x + radius + kLanes <= cols; x += kLanes) {
+        ByteVector acc = ByteVector.fromByteBuffer(kBytes, src, row + x - radius, kOrder);
+        for (int dx = 1 - radius; dx <= radius; dx++) {
+          acc = acc.lanewise(op, ByteVector.fromByteBuffer(kBytes, src, row + x + dx, kOrder));
+        }
+        acc.intoByteBuffer(dst, row + x, kOrder);
+      }
+      for (; x < cols; x++) {
+        dst.put(row + x, rowPixel(src, row, cols, x, radius, op, absorbingBorder));
+      }
+    }
+  }
+
+  /**
+   * Combine each pixel with its neighbours up to radius rows away, within the column.
+   */
+  static void columnPass(ByteBuffer src, ByteBuffer dst, int rows, int cols, int radius,
+      VectorOperators.Associative op, boolean absorbingBorder) {
+    for (int y = 0; y < rows; y++) {
+      int top = Math.max(0, y - radius);
+      int bottom = Math.min(rows - 1, y + radius);
+      if (absorbingBorder && (y - radius < 0 || y + radius >= rows)) {
+        for (int x = 0; x < cols; x++) {
+          dst.put(y * cols + x, absorbing(op));
+        }
+        continue;
+      }
+      int x = 0;
+      for (; x + kLanes <= cols; x += kLanes) {
+        ByteVector acc = ByteVector.fromByteBuffer(kBytes, src, top * cols + x, kOrder);
+        for (int yy = top + 1; yy <= bottom; yy++) {
+          acc = acc.lanewise(op, ByteVector.fromByteBuffer(kBytes, src, yy * cols + x, kOrder));
+        }
+        acc.intoByteBuffer(dst, y * cols + x, kOrder);
+      }
+      for (; x < cols; x++) {
+        byte acc = src.get(top * cols + x);
+        for (int yy = top + 1; yy <= bottom; yy++) {
+          acc = combine(acc, src.get(yy * cols + x), op);
+        }
+        dst.put(y * cols + x, acc);
+      }
+    }
+  }
+
+  private static byte rowPixel(ByteBuffer src, int row, int cols, int x, int radius,
+      VectorOperators.Associative op, boolean absorbingBorder) {
+    if (absorbingBorder && (x - radius < 0 || x + radius >= cols)) {
+      return absorbing(op);
+    }
+    int left = Math.max(0, x - radius);
+    int right = Math.min(cols - 1, x + radius);
+    byte acc = src.get(row + left);
+    for (int xx = left + 1; xx <= right; xx++) {
+      acc = combine(acc, src.get(row + xx), op);
+    }
+    return acc;
+  }
+
+  private static byte absorbing(VectorOperators.Associative op) {
+    return op == VectorOperators.AND ? 0 : (byte) 255;
+  }
+
+  private static byte combine(byte a, byte b, VectorOperators.Associative op) {
+    return (byte) (op == VectorOperators.AND ? a & b : a | b);
+  }
+}
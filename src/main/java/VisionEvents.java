@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Date;
+import java.util.EnumSet;
+
+import edu.wpi.first.cscore.VideoEvent;
+import edu.wpi.first.cscore.VideoListener;
+import edu.wpi.first.networktables.BooleanEntry;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEvent;
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the vision loop, and the continuous recording that collects them.
+ *
+ * <p>All events are disabled unless a recording enables them, so in a normal run they cost a
+ * flag check per frame. With a "flight recorder" section in frc.json a low-overhead recording is
+ * kept running in a rolling on-disk buffer and written out whenever PiVision/DumpFlightRecording
+ * is set to true. Open the .jfr file in JDK Mission Control.
+ */
+public final class VisionEvents {
+  private static Recording recording;
+  private static Path dumpDirectory;
+  private static BooleanEntry dumpEntry;
+  private static VideoListener cameraListener;
+
+  /**
+   * One processed (or dropped) frame with the time spent in each stage.
+   */
+  @Name("PiVision.Frame")
+  @Label("Vision Frame")
+  @Category("PiVision")
+  @Enabled(false)
+  @StackTrace(false)
+  public static class Frame extends Event {
+    @Label("Frame Number")
+    public long frameNumber;
+
+    @Label("Grab")
+    @Timespan(Timespan.NANOSECONDS)
+    public long grab;
+
+    @Label("Process")
+    @Timespan(Timespan.NANOSECONDS)
+    public long process;
+
+    @Label("Select")
+    @Timespan(Timespan.NANOSECONDS)
+    public long select;
+
+    @Label("Publish")
+    @Timespan(Timespan.NANOSECONDS)
+    public long publish;
+
+    @Label("Contours")
+    public int contourCount;
+
+    @Label("Detected")
+    public boolean detected;
+
+    @Label("Target X")
+    public int targetX;
+
+    @Label("Target Y")
+    public int targetY;
+
+    @Label("Dropped")
+    @Description("The frame grab failed or timed out")
+    public boolean dropped;
+
+    @Label("Skipped")
+    @Description("Newer frames arrived while the pipeline was busy and were skipped before this one")
+    public boolean skipped;
+
+    /**
+     * Copy the detection into the event and commit it if the recording wants it.
+     */
+    public void finish(Detection detection) {
+      end();
+      if (!shouldCommit()) {
+        return;
+      }
+      frameNumber = detection.frameNumber;
+      grab = detection.grabNanos;
+      process = detection.processNanos;
+      select = detection.selectNanos;
+      publish = detection.publishNanos;
+      contourCount = detection.contourCount;
+      detected = detection.detected;
+      targetX = detection.centerX;
+      targetY = detection.centerY;
+      commit();
+    }
+  }
+
+  /**
+   * A camera connected or disconnected.
+   */
+  @Name("PiVision.CameraConnection")
+  @Label("Camera Connection")
+  @Category("PiVision")
+  @Enabled(false)
+  @StackTrace(false)
+  public static class CameraConnection extends Event {
+    @Label("Camera")
+    public String camera;
+
+    @Label("Connected")
+    public boolean connected;
+  }
+
+  /**
+   * The configuration file was (re)loaded.
+   */
+  @Name("PiVision.ConfigLoad")
+  @Label("Config Load")
+  @Category("PiVision")
+  @Enabled(false)
+  @StackTrace(false)
+  public static class ConfigLoad extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Cameras")
+    public int cameraCount;
+
+    @Label("Success")
+    public boolean success;
+  }
+
+  private VisionEvents() {
+  }
+
+  /**
+   * Record a configuration load.
+   */
+  public static void configLoaded(String file, int cameraCount, boolean success) {
+    ConfigLoad event = new ConfigLoad();
+    if (event.isEnabled()) {
+      event.file = file;
+      event.cameraCount = cameraCount;
+      event.success = success;
+      event.commit();
+    }
+  }
+
+  /**
+   * Start the continuous recording and the NT trigger that dumps it.
+   */
+  public static void startRecording(Main.FlightRecorderConfig config, NetworkTable table) {
+    try {
+      recording = new Recording(Configuration.getConfiguration(config.settings));
+    } catch (IOException | ParseException ex) {
+      System.err.println("Could not load flight recorder settings [" + config.settings + "]: " + ex);
+      return;
+    }
+    recording.setName("PiVision");
+    recording.setToDisk(true);
+    recording.setMaxAge(Duration.ofSeconds(config.maxAgeSeconds));
+    recording.setMaxSize(config.maxSizeMegabytes * 1024L * 1024L);
+    recording.enable(Frame.class).withThreshold(Duration.ofMillis(config.slowFrameMillis));
+    recording.enable(CameraConnection.class);
+    recording.enable(ConfigLoad.class);
+    recording.start();
+    dumpDirectory = Paths.get(config.dumpDirectory);
+    System.out.println("Flight recording started, set PiVision/DumpFlightRecording to save it to " + dumpDirectory);
+
+    // camera connect/disconnect events straight from cscore
+    cameraListener = new VideoListener(event -> {
+      CameraConnection connection = new CameraConnection();
+      if (connection.isEnabled()) {
+        connection.camera = event.getSource().getName();
+        connection.connected = event.kind == VideoEvent.Kind.kSourceConnected;
+        connection.commit();
+      }
+    }, VideoEvent.Kind.kSourceConnected.getValue() | VideoEvent.Kind.kSourceDisconnected.getValue(), false);
+
+    // dump trigger
+    dumpEntry = table.getBooleanTopic("DumpFlightRecording").getEntry(false);
+    dumpEntry.set(false);
+    NetworkTableInstance inst = table.getInstance();
+    inst.addListener(dumpEntry, EnumSet.of(NetworkTableEvent.Kind.kValueAll), event -> {
+      if (event.valueData != null && event.valueData.value.getBoolean()) {
+        // writing the file can take a while, keep it off the NT listener thread
+        new Thread(VisionEvents::dump, "FlightRecorderDump").start();
+      }
+    });
+  }
+
+  /**
+   * Write the recording buffer out to a timestamped file and re-arm the trigger.
+   */
+  private static synchronized void dump() {
+    String name = "pivision-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr";
+    Path file = dumpDirectory.resolve(name);
+    try {
+      Files.createDirectories(dumpDirectory);
+      recording.dump(file);
+      System.out.println("Flight recording saved to " + file);
+    } catch (IOException ex) {
+      System.err.println("Could not save flight recording to [" + file + "]: " + ex);
+    }
+    dumpEntry.set(false);
+  }
+}
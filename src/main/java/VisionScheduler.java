@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.wpi.first.networktables.DoublePublisher;
+import edu.wpi.first.networktables.IntegerPublisher;
+import edu.wpi.first.networktables.NetworkTable;
+
+/**
+ * Runs every vision pipeline on a fixed pool of worker threads, by priority and target rate.
+ *
+ * <p>Each pipeline is registered with the frame source it reads, a target rate and a priority.
+ * Whenever a worker is free it takes the highest priority pipeline that is due and has a frame it
+ * has not seen yet, copies that source's newest frame and runs it. Frames that arrive while a
+ * pipeline is busy are not queued; the pipeline just gets the freshest frame next time and the
+ * ones in between are counted as skipped.
+ *
+ * <p>A run misses its deadline when it finishes more than one period after it was due. For each
+ * pipeline, PiVision/Scheduler/&lt;name&gt;/ has the achieved Rate, DeadlineMisses and
+ * SkippedFrames, the TargetRate it is scheduled at (0 for every frame) and FrameAge, the mean
+ * milliseconds from each frame's capture time to the start of processing. For cameras the capture
+ * time is when cscore took the frame from the driver, so time spent in the driver is not counted.
+ *
+ * <p>{@link #setThrottle} caps every pipeline's rate, for while the robot is disabled. Lifting
+ * the throttle makes every pipeline due at once, so each runs on the next frame.
+ */
+public final class VisionScheduler {
+  private static final long kStatsWindowNanos = 1000000000L;
+
+  /**
+   * Work done on each frame. Runs on a scheduler worker, never on two workers at once.
+   */
+  public interface Job {
+    void run(FrameSource.Frame frame);
+  }
+
+  private static final class Task {
+    final String name;
+    final FrameSource source;
+    final Job job;
+    final long periodNanos;
+    final int priority;
+    final FrameSource.Frame frame = new FrameSource.Frame();
+
+    boolean running;
+    long nextDue;
+
+    long windowStart;
+    long windowRuns;
+    long deadlineMisses;
+    long skippedFrames;
+    long windowAgeMicros;
+
+    DoublePublisher pubRate;
+    DoublePublisher pubTargetRate;
+    DoublePublisher pubFrameAge;
+    IntegerPublisher pubDeadlineMisses;
+    IntegerPublisher pubSkippedFrames;
+
+    Task(String name, FrameSource source, Job job, double rate, int priority) {
+      this.name = name;
+      this.source = source;
+      this.job = job;
+      this.periodNanos = rate > 0 ? (long) (1.0e9 / rate) : 0;
+      this.priority = priority;
+    }
+  }
+
+  private final int workerCount;
+  private final NetworkTable table;
+  private final List<Task> tasks = new ArrayList<>();
+  private final List<Thread> workers = new ArrayList<>();
+  private final Set<FrameSource> sources = new LinkedHashSet<>();
+  private long waitNanos;
+  private long throttlePeriodNanos;
+
+  /**
+   * Create a scheduler.
+   *
+   * @param workerCount number of worker threads, at most one pipeline runs on each
+   * @param table table to publish under, usually PiVision
+   */
+  public VisionScheduler(int workerCount, NetworkTable table) {
+    this.workerCount = workerCount;
+    this.table = table;
+  }
+
+  /**
+   * Register a pipeline. Must be called before {@link #start}.
+   *
+   * @param name pipeline name, used for its NT stats
+   * @param source where its frames come from
+   * @param rate target runs per second, 0 to run on every frame
+   * @param priority higher runs first when several pipelines are waiting
+   * @param job the pipeline itself
+   */
+  public synchronized void add(String name, FrameSource source, double rate, int priority, Job job) {
+    Task task = new Task(name, source, job, rate, priority);
+    NetworkTable stats = table.getSubTable("Scheduler").getSubTable(name);
+    task.pubRate = stats.getDoubleTopic("Rate").publish();
+    task.pubDeadlineMisses = stats.getIntegerTopic("DeadlineMisses").publish();
+    task.pubSkippedFrames = stats.getIntegerTopic("SkippedFrames").publish();
+    task.pubTargetRate = stats.getDoubleTopic("TargetRate").publish();
+    task.pubFrameAge = stats.getDoubleTopic("FrameAge").publish();
+    task.pubTargetRate.set(targetRate(task));
+    tasks.add(task);
+    System.out.println("Scheduling pipeline '" + name + "' on " + source.getName()
+        + (rate > 0 ? " at " + rate + " Hz" : " on every frame") + ", priority " + priority);
+  }
+
+  /**
+   * Start the frame sources and the workers.
+   */
+  public void start() {
+    synchronized (this) {
+      long now = System.nanoTime();
+      for (Task task : tasks) {
+        task.nextDue = now;
+        task.windowStart = now;
+        sources.add(task.source);
+      }
+    }
+    for (FrameSource source : sources) {
+      source.setOnFrame(this::wake);
+      source.start();
+    }
+    for (int i = 0; i < workerCount; i++) {
+      Thread worker = new Thread(this::work, "VisionWorker-" + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+  }
+
+  /**
+   * Stop the workers and the frame sources, waiting for running pipelines to finish.
+   */
+  public void stop() throws InterruptedException {
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    workers.clear();
+    for (FrameSource source : sources) {
+      source.stop();
+    }
+  }
+
+  /**
+   * Cap every pipeline at rate runs per second, or lift the cap with 0.
+   */
+  public synchronized void setThrottle(double rate) {
+    long period = rate > 0 ? (long) (1.0e9 / rate) : 0;
+    if (period == throttlePeriodNanos) {
+      return;
+    }
+    boolean lifting = period < throttlePeriodNanos;
+    throttlePeriodNanos = period;
+    long now = System.nanoTime();
+    for (Task task : tasks) {
+      if (lifting) {
+        // don't wait out a slow period that no longer applies
+        task.nextDue = Math.min(task.nextDue, now);
+      }
+      task.pubTargetRate.set(targetRate(task));
+    }
+    notifyAll();
+  }
+
+  private long periodNanos(Task task) {
+    return Math.max(task.periodNanos, throttlePeriodNanos);
+  }
+
+  private double targetRate(Task task) {
+    long period = periodNanos(task);
+    return period > 0 ? 1.0e9 / period : 0;
+  }
+
+  private synchronized void wake() {
+    notifyAll();
+  }
+
+  private void work() {
+    while (!Thread.interrupted()) {
+      Task task;
+      long due;
+      synchronized (this) {
+        task = next();
+        while (task == null) {
+          try {
+            if (waitNanos == Long.MAX_VALUE) {
+              wait();
+            } else {
+              wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            }
+          } catch (InterruptedException ex) {
+            return;
+          }
+          task = next();
+        }
+        task.running = true;
+        due = task.nextDue;
+      }
+
+      task.source.copyLatest(task.frame);
+      long start = System.nanoTime();
+      long age = task.source.now() - task.frame.captureTime;
+      task.job.run(task.frame);
+      long end = System.nanoTime();
+
+      synchronized (this) {
+        task.running = false;
+        task.windowRuns++;
+        task.windowAgeMicros += age;
+        task.skippedFrames += task.frame.skipped;
+        long period = periodNanos(task);
+        if (period > 0) {
+          if (end > due + period) {
+            task.deadlineMisses++;
+          }
+          // don't try to catch up on runs we are already too late for
+          task.nextDue = Math.max(due + period, start);
+        }
+        if (end - task.windowStart >= kStatsWindowNanos) {
+          task.pubRate.set(task.windowRuns * 1.0e9 / (end - task.windowStart));
+          task.pubDeadlineMisses.set(task.deadlineMisses);
+          task.pubSkippedFrames.set(task.skippedFrames);
+          task.pubFrameAge.set(task.windowAgeMicros / 1000.0 / task.windowRuns);
+          task.windowStart = end;
+          task.windowRuns = 0;
+          task.windowAgeMicros = 0;
+        }
+      }
+    }
+  }
+
+  /**
+   * Pick the pipeline a free worker should run now, or null if none is ready. Sets waitNanos to
+   * how long until the next one becomes due.
+   */
+  private Task next() {
+    long now = System.nanoTime();
+    Task best = null;
+    waitNanos = Long.MAX_VALUE;
+    for (Task task : tasks) {
+      if (task.running || task.source.latestSequence() <= task.frame.sequence) {
+        // busy, or nothing new to look at; a new frame wakes us up
+        continue;
+      }
+      if (task.nextDue > now) {
+        waitNanos = Math.min(waitNanos, task.nextDue - now);
+        continue;
+      }
+      if (best == null || task.priority > best.priority
+          || (task.priority == best.priority && task.nextDue < best.nextDue)) {
+        best = task;
+      }
+    }
+    return best;
+  }
+}